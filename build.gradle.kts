@@ -18,6 +18,7 @@ plugins {
     id("com.gradle.plugin-publish") version "0.15.0"
     `java-gradle-plugin`
     kotlin("jvm") version "1.5.10"
+    id("me.champeau.jmh") version "0.6.5"
 }
 
 val kotlinVersion = "1.5.10"
@@ -67,4 +68,14 @@ dependencies {
     implementation(kotlin("reflect", kotlinVersion))
     implementation("org.ow2.asm", "asm", "9.2")
     implementation("org.ow2.asm", "asm-commons", "9.2")
+
+    testImplementation("org.junit.jupiter", "junit-jupiter", "5.7.2")
+}
+
+tasks.test {
+    useJUnitPlatform()
+}
+
+jmh {
+    jmhVersion.set("1.32")
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the classes of an application which extend classes of the nested jars, either with the application
+ * class loader on top of the launcher, or with the launcher alone, which also indexes the single jar.
+ *
+ * @author joserobjr
+ * @since 2021-08-16
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ApplicationClassBenchmark {
+    @Param({"false", "true"})
+    public boolean singleLoader;
+
+    @Param({SingleJarLauncher.MODE_EAGER, SingleJarLauncher.MODE_LAZY})
+    public String mode;
+
+    @Param({"100"})
+    public int jarCount;
+
+    @Param({"5000"})
+    public int applicationClassCount;
+
+    private SyntheticSingleJar singleJar;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        singleJar = new SyntheticSingleJar(jarCount, 200, 1024, false, applicationClassCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        singleJar.close();
+    }
+
+    /**
+     * Time to load every application class with a new class loader, including their super classes.
+     */
+    @Benchmark
+    public void loadApplicationClasses(FreshLoader fresh, Blackhole blackhole) throws ClassNotFoundException {
+        for (String className : singleJar.applicationClassNames) {
+            blackhole.consume(Class.forName(className, false, fresh.loader));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FreshLoader {
+        private URLClassLoader singleJarLoader;
+        ClassLoader loader;
+
+        @Setup(Level.Iteration)
+        public void setUp(ApplicationClassBenchmark benchmark) throws IOException, ReflectiveOperationException {
+            singleJarLoader = benchmark.singleJar.open();
+            loader = benchmark.singleJar.newApplicationLoader(singleJarLoader, benchmark.mode, benchmark.singleLoader);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            loader = null;
+            singleJarLoader.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.SecureClassLoader;
+import java.security.cert.Certificate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of each {@code defineClass} call with no protection domain, with one protection domain shared by all
+ * classes of a nested jar, like {@link SingleJarLauncher} does, and with a new one for each class.
+ *
+ * @author joserobjr
+ * @since 2021-08-15
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DefineClassBenchmark {
+    private static final int CLASSES = 2000;
+
+    @Param({"none", "shared", "perClass"})
+    public String protectionDomain;
+
+    @Param({"1024"})
+    public int classSize;
+
+    private final String[] names = new String[CLASSES];
+    private final ByteBuffer[] classes = new ByteBuffer[CLASSES];
+    private URL location;
+    private ProtectionDomain shared;
+    private DefiningLoader loader;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws MalformedURLException {
+        Random random = new Random(42);
+        for (int i = 0; i < CLASSES; i++) {
+            String className = "bench/Generated" + i;
+            names[i] = className.replace('/', '.');
+            classes[i] = ByteBuffer.wrap(SyntheticSingleJar.generateClass(className, SyntheticSingleJar.padding(classSize, random)));
+        }
+        location = new URL("jar:file:/single.jar!/META-INF/lib/lib-0.jar");
+        loader = new DefiningLoader();
+        shared = loader.newProtectionDomain(location);
+    }
+
+    /**
+     * Defines the next generated class, a new loader is created after all of them were defined.
+     */
+    @Benchmark
+    public Class<?> defineClass() {
+        if (next == CLASSES) {
+            loader = new DefiningLoader();
+            shared = loader.newProtectionDomain(location);
+            next = 0;
+        }
+
+        int index = next++;
+        ProtectionDomain domain;
+        switch (protectionDomain) {
+            case "shared":
+                domain = shared;
+                break;
+            case "perClass":
+                domain = loader.newProtectionDomain(location);
+                break;
+            default:
+                domain = null;
+        }
+        return loader.define(names[index], classes[index].duplicate(), domain);
+    }
+
+    static final class DefiningLoader extends SecureClassLoader {
+        DefiningLoader() {
+            super(null);
+        }
+
+        ProtectionDomain newProtectionDomain(URL location) {
+            CodeSource codeSource = new CodeSource(location, (Certificate[]) null);
+            return new ProtectionDomain(codeSource, getPermissions(codeSource), this, null);
+        }
+
+        Class<?> define(String name, ByteBuffer bytes, ProtectionDomain protectionDomain) {
+            return defineClass(name, bytes, protectionDomain);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the loaders with single jars of different shapes.
+ *
+ * <p>{@link SingleJarLauncherFailed} is left out, it can't load anything from the nested jars.
+ *
+ * @author joserobjr
+ * @since 2021-08-15
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LauncherBenchmark {
+    @Param({SyntheticSingleJar.OK_BUT_SLOW, SingleJarLauncher.MODE_EAGER, SingleJarLauncher.MODE_OFF_HEAP,
+            SingleJarLauncher.MODE_LAZY, SingleJarLauncher.MODE_MAPPED})
+    public String loader;
+
+    @Param({"20", "100"})
+    public int jarCount;
+
+    @Param({"200"})
+    public int entryCount;
+
+    @Param({"1024", "16384"})
+    public int entrySize;
+
+    @Param({"deflated", "stored"})
+    public String compression;
+
+    private SyntheticSingleJar singleJar;
+    private URLClassLoader singleJarLoader;
+    private ClassLoader launcher;
+    private byte[] buffer;
+    private int nextResource;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ReflectiveOperationException {
+        singleJar = new SyntheticSingleJar(jarCount, entryCount, entrySize, "stored".equals(compression));
+        singleJarLoader = singleJar.open();
+        launcher = singleJar.newLauncher(singleJarLoader, loader);
+        buffer = new byte[8192];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        launcher = null;
+        singleJarLoader.close();
+        singleJar.close();
+    }
+
+    /**
+     * Time spent by the constructor, which is what delays the main method of the application.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 10)
+    public ClassLoader construct() throws IOException, ReflectiveOperationException {
+        try (URLClassLoader singleJarLoader = singleJar.open()) {
+            return singleJar.newLauncher(singleJarLoader, loader);
+        }
+    }
+
+    /**
+     * Time to load every generated class with a new loader, each one passes through {@code findClass}.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 10)
+    public void findClass(FreshLauncher fresh, Blackhole blackhole) throws ClassNotFoundException {
+        for (String className : singleJar.classNames) {
+            blackhole.consume(Class.forName(className, false, fresh.launcher));
+        }
+    }
+
+    /**
+     * Reads the generated resources fully, one after the other.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long getResourceAsStream() throws IOException {
+        String name = singleJar.resourceNames.get(nextResource++ % singleJar.resourceNames.size());
+        long total = 0;
+        try (InputStream is = launcher.getResourceAsStream(name)) {
+            int read;
+            while ((read = is.read(buffer)) >= 0) {
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Finds a resource which is present in all nested jars.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int findResources(Blackhole blackhole) throws IOException {
+        Enumeration<URL> resources = launcher.getResources(SyntheticSingleJar.SHARED_RESOURCE);
+        int count = 0;
+        while (resources.hasMoreElements()) {
+            blackhole.consume(resources.nextElement());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Heap that stays in use while the loader is reachable, reported by the {@code retainedBytes} counter.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void retainedHeap(HeapCounter counter, Blackhole blackhole) throws IOException, ReflectiveOperationException {
+        try (URLClassLoader singleJarLoader = singleJar.open()) {
+            long before = usedHeapAfterGc();
+            ClassLoader retained = singleJar.newLauncher(singleJarLoader, loader);
+            counter.retainedBytes += usedHeapAfterGc() - before;
+            blackhole.consume(retained);
+        }
+    }
+
+    static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * A loader that haven't loaded any class yet, because each class can only be defined once by each loader.
+     */
+    @State(Scope.Thread)
+    public static class FreshLauncher {
+        private URLClassLoader singleJarLoader;
+        ClassLoader launcher;
+
+        @Setup(Level.Iteration)
+        public void setUp(LauncherBenchmark benchmark) throws IOException, ReflectiveOperationException {
+            singleJarLoader = benchmark.singleJar.open();
+            launcher = benchmark.singleJar.newLauncher(singleJarLoader, benchmark.loader);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            launcher = null;
+            singleJarLoader.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class HeapCounter {
+        public long retainedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            retainedBytes = 0;
+        }
+    }
+}
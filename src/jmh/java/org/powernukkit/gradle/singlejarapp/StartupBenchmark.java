@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The launcher modes with a single jar about the size of a big application, 180 nested jars with 400 files each.
+ * The time spent by the constructor is what delays the main method of the application.
+ *
+ * @author joserobjr
+ * @since 2021-08-18
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StartupBenchmark {
+    @Param({SingleJarLauncher.MODE_EAGER, SingleJarLauncher.MODE_OFF_HEAP, SingleJarLauncher.MODE_LAZY,
+            SingleJarLauncher.MODE_MAPPED})
+    public String mode;
+
+    @Param({"deflated", "stored"})
+    public String compression;
+
+    @Param({"true", "false"})
+    public boolean indexed;
+
+    @Param({"180"})
+    public int jarCount;
+
+    private SyntheticSingleJar singleJar;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        singleJar = new SyntheticSingleJar(jarCount, 400, 2048, "stored".equals(compression), 0, indexed);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        singleJar.close();
+    }
+
+    @Benchmark
+    public ClassLoader construct() throws IOException, ReflectiveOperationException {
+        try (URLClassLoader singleJarLoader = singleJar.open()) {
+            return singleJar.newLauncher(singleJarLoader, mode);
+        }
+    }
+
+    /**
+     * Heap that stays in use while the loader is reachable, reported by the {@code retainedBytes} counter.
+     */
+    @Benchmark
+    public void retainedHeap(LauncherBenchmark.HeapCounter counter, Blackhole blackhole) throws IOException, ReflectiveOperationException {
+        try (URLClassLoader singleJarLoader = singleJar.open()) {
+            long before = LauncherBenchmark.usedHeapAfterGc();
+            ClassLoader retained = singleJar.newLauncher(singleJarLoader, mode);
+            counter.retainedBytes += LauncherBenchmark.usedHeapAfterGc() - before;
+            blackhole.consume(retained);
+        }
+    }
+}
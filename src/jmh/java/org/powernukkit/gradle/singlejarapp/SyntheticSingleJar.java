@@ -0,0 +1,284 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.gradle.api.logging.Logging;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A single jar built in a temporary directory, with the launcher classes, the nested jars index and nested jars
+ * full of generated classes and resources, laid out like the ones built by the plugin.
+ *
+ * @author joserobjr
+ * @since 2021-08-15
+ */
+final class SyntheticSingleJar implements Closeable {
+    /**
+     * Loader that preloads everything with {@link SingleJarLauncherOkButSlow}, the other loaders are the
+     * {@link SingleJarLauncher} modes.
+     */
+    static final String OK_BUT_SLOW = "okButSlow";
+
+    /**
+     * Resource present in all nested jars.
+     */
+    static final String SHARED_RESOURCE = "META-INF/bench/shared.txt";
+
+    private static final String PACKAGE_DIR = SingleJarLauncher.class.getPackage().getName().replace('.', '/') + '/';
+
+    final Path directory;
+    final Path file;
+    final String[] internalPaths;
+    final List<String> classNames = new ArrayList<>();
+    final List<String> resourceNames = new ArrayList<>();
+    final List<String> applicationClassNames = new ArrayList<>();
+
+    /**
+     * @param jarCount how many nested jars are created
+     * @param entryCount how many files each nested jar has, half classes and half resources
+     * @param entrySize the approximated size of each file
+     * @param stored if the nested jars are stored without compression in the single jar
+     */
+    SyntheticSingleJar(int jarCount, int entryCount, int entrySize, boolean stored) throws IOException {
+        this(jarCount, entryCount, entrySize, stored, 0);
+    }
+
+    /**
+     * @param applicationClassCount how many classes the application has outside the nested jars, each one extends
+     *                              a class of the nested jars
+     */
+    SyntheticSingleJar(int jarCount, int entryCount, int entrySize, boolean stored, int applicationClassCount) throws IOException {
+        this(jarCount, entryCount, entrySize, stored, applicationClassCount, true);
+    }
+
+    /**
+     * @param indexed if the single jar has the index of the nested jars, like the ones built by the plugin
+     */
+    SyntheticSingleJar(int jarCount, int entryCount, int entrySize, boolean stored, int applicationClassCount, boolean indexed) throws IOException {
+        directory = Files.createTempDirectory("singlejar-bench");
+        file = directory.resolve("single.jar");
+        internalPaths = new String[jarCount];
+
+        Random random = new Random(42);
+        List<File> nestedJars = new ArrayList<>(jarCount);
+        for (int jar = 0; jar < jarCount; jar++) {
+            Path nestedJar = directory.resolve("lib-" + jar + ".jar");
+            writeNestedJar(nestedJar, jar, entryCount, entrySize, random);
+            nestedJars.add(nestedJar.toFile());
+            internalPaths[jar] = "/META-INF/lib/" + nestedJar.getFileName();
+        }
+
+        File index = directory.resolve(SingleJarLauncher.INDEX_RESOURCE).toFile();
+        IndexKt.writeSingleJarIndex(nestedJars, index, Logging.getLogger(SyntheticSingleJar.class));
+
+        try (ZipOutputStream output = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            for (Map.Entry<String, byte[]> launcherClass : launcherClasses().entrySet()) {
+                output.putNextEntry(new ZipEntry(launcherClass.getKey()));
+                output.write(launcherClass.getValue());
+            }
+
+            if (indexed) {
+                output.putNextEntry(new ZipEntry(SingleJarLauncher.INDEX_RESOURCE));
+                output.write(Files.readAllBytes(index.toPath()));
+            }
+
+            for (int i = 0; i < applicationClassCount; i++) {
+                String className = "bench/app/pkg" + (i % 10) + "/AppClass" + i;
+                String superName = classNames.get(i % classNames.size()).replace('.', '/');
+                applicationClassNames.add(className.replace('/', '.'));
+                output.putNextEntry(new ZipEntry(className + ".class"));
+                output.write(generateClass(className, superName, padding(entrySize, random)));
+            }
+
+            for (File nestedJar : nestedJars) {
+                byte[] data = Files.readAllBytes(nestedJar.toPath());
+                ZipEntry entry = new ZipEntry("META-INF/lib/" + nestedJar.getName());
+                if (stored) {
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCompressedSize(data.length);
+                    entry.setCrc(crc.getValue());
+                }
+                output.putNextEntry(entry);
+                output.write(data);
+            }
+        }
+    }
+
+    private void writeNestedJar(Path nestedJar, int jar, int entryCount, int entrySize, Random random) throws IOException {
+        try (JarOutputStream output = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(nestedJar)))) {
+            for (int entry = 0; entry < entryCount; entry++) {
+                String padding = padding(entrySize, random);
+                if (entry % 2 == 0) {
+                    String className = "bench/jar" + jar + "/Class" + entry;
+                    classNames.add(className.replace('/', '.'));
+                    output.putNextEntry(new JarEntry(className + ".class"));
+                    output.write(generateClass(className, padding));
+                } else {
+                    String resourceName = "bench/jar" + jar + "/resource" + entry + ".txt";
+                    resourceNames.add(resourceName);
+                    output.putNextEntry(new JarEntry(resourceName));
+                    output.write(padding.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            output.putNextEntry(new JarEntry(SHARED_RESOURCE));
+            output.write(("jar" + jar).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Printable text that compresses about as well as real class files.
+     */
+    static String padding(int size, Random random) {
+        char[] chars = new char[Math.min(size, 65000)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(random.nextBoolean()? 4 : 26));
+        }
+        return new String(chars);
+    }
+
+    static byte[] generateClass(String className, String padding) {
+        return generateClass(className, "java/lang/Object", padding);
+    }
+
+    static byte[] generateClass(String className, String superName, String padding) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, superName, null);
+        writer.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "PADDING", "Ljava/lang/String;", null, padding).visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static Map<String, byte[]> launcherClasses() throws IOException {
+        Path location;
+        try {
+            location = Paths.get(SingleJarLauncher.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        if (Files.isDirectory(location)) {
+            try (Stream<Path> files = Files.list(location.resolve(PACKAGE_DIR))) {
+                for (Path launcherClass : files.filter(SyntheticSingleJar::isLauncherClass).collect(Collectors.toList())) {
+                    classes.put(PACKAGE_DIR + launcherClass.getFileName(), Files.readAllBytes(launcherClass));
+                }
+            }
+        } else {
+            try (JarFile jarFile = new JarFile(location.toFile())) {
+                for (JarEntry entry : Collections.list(jarFile.entries())) {
+                    if (entry.getName().startsWith(PACKAGE_DIR) && isLauncherClass(Paths.get(entry.getName()))) {
+                        try (InputStream is = jarFile.getInputStream(entry)) {
+                            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                            byte[] buffer = new byte[8192];
+                            int read;
+                            while ((read = is.read(buffer)) >= 0) {
+                                bos.write(buffer, 0, read);
+                            }
+                            classes.put(entry.getName(), bos.toByteArray());
+                        }
+                    }
+                }
+            }
+        }
+        return classes;
+    }
+
+    private static boolean isLauncherClass(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith("SingleJarLauncher") && name.endsWith(".class");
+    }
+
+    /**
+     * Opens the single jar the same way the JVM does when it's launched with {@code java -jar}.
+     */
+    URLClassLoader open() throws IOException {
+        return new URLClassLoader(new URL[]{file.toUri().toURL()}, null);
+    }
+
+    /**
+     * Creates the given loader using the launcher classes of the given single jar class loader.
+     *
+     * @param loader {@link #OK_BUT_SLOW} or a {@link SingleJarLauncher} mode
+     */
+    ClassLoader newLauncher(URLClassLoader singleJar, String loader) throws ReflectiveOperationException {
+        if (OK_BUT_SLOW.equals(loader)) {
+            return (ClassLoader) singleJar.loadClass(SingleJarLauncherOkButSlow.class.getName())
+                    .getConstructor(String[].class, ClassLoader.class)
+                    .newInstance(internalPaths, null);
+        }
+        return (ClassLoader) singleJar.loadClass(SingleJarLauncher.class.getName())
+                .getConstructor(String[].class, ClassLoader.class, String.class)
+                .newInstance(internalPaths, null, loader);
+    }
+
+    /**
+     * Creates the class loader of the application classes, like the launcher does in its main method.
+     *
+     * @param singleLoader if the launcher also loads the application classes, instead of a second class loader
+     */
+    ClassLoader newApplicationLoader(URLClassLoader singleJar, String mode, boolean singleLoader) throws ReflectiveOperationException {
+        Class<?> launcherClass = singleJar.loadClass(SingleJarLauncher.class.getName());
+        if (singleLoader) {
+            String[] paths = Arrays.copyOf(internalPaths, internalPaths.length + 1);
+            paths[internalPaths.length] = SingleJarLauncher.SINGLE_JAR;
+            return (ClassLoader) launcherClass.getConstructor(String[].class, ClassLoader.class, String.class)
+                    .newInstance(paths, null, mode);
+        }
+
+        ClassLoader launcher = newLauncher(singleJar, mode);
+        Set<String> packages = applicationClassNames.stream()
+                .map(it -> it.substring(0, it.lastIndexOf('.')))
+                .collect(Collectors.toSet());
+        Constructor<?> constructor = singleJar.loadClass(SingleJarLauncher.class.getName() + "$ApplicationLoader")
+                .getDeclaredConstructor(URL.class, ClassLoader.class, Set.class);
+        constructor.setAccessible(true);
+        return (ClassLoader) constructor.newInstance(singleJar.getURLs()[0], launcher, packages);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
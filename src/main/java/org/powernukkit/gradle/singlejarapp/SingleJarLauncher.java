@@ -18,16 +18,58 @@ package org.powernukkit.gradle.singlejarapp;
 
 import org.jetbrains.annotations.Nullable;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.nio.file.attribute.UserPrincipalNotFoundException;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
 import java.security.SecureClassLoader;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Attributes;
 import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -37,165 +79,2910 @@ import java.util.stream.Stream;
  */
 
 public class SingleJarLauncher extends SecureClassLoader {
-    private static final byte[][] EMPTY = new byte[0][0];
-    private final Map<String, byte[][]> knownObjects = new LinkedHashMap<>();
-    private byte[] buffer;
+    /**
+     * System property used to pick how the nested jars are loaded, either {@link #MODE_EAGER}, {@link #MODE_OFF_HEAP},
+     * {@link #MODE_LAZY}, {@link #MODE_MAPPED} or {@link #MODE_EXTRACT}.
+     */
+    public static final String MODE_PROPERTY = "singlejar.mode";
+
+    /**
+     * Attribute of the manifest of the single jar with the mode used when the {@link #MODE_PROPERTY} is not set,
+     * picked when the single jar is built.
+     */
+    public static final String MODE_ATTRIBUTE = "SingleJar-Launcher-Mode";
+
+    /**
+     * System property that makes the launcher also load the classes and resources of the application from the
+     * single jar itself, instead of a second class loader.
+     */
+    public static final String SINGLE_LOADER_PROPERTY = "singlejar.singleLoader";
+
+    /**
+     * Attribute of the manifest of the single jar used when the {@link #SINGLE_LOADER_PROPERTY} is not set.
+     */
+    public static final String SINGLE_LOADER_ATTRIBUTE = "SingleJar-Single-Loader";
+
+    /**
+     * Internal path that stands for the single jar itself, its entries are indexed like the ones of the nested jars
+     * and are always inflated on demand.
+     */
+    public static final String SINGLE_JAR = "/";
+
+    /**
+     * Inflates every entry of every nested jar to the heap when the launcher is created.
+     */
+    public static final String MODE_EAGER = "eager";
+
+    /**
+     * Like {@link #MODE_EAGER}, but the inflated entries are packed in direct buffers, outside the heap,
+     * and the classes are defined straight from them.
+     */
+    public static final String MODE_OFF_HEAP = "offheap";
+
+    /**
+     * Keeps only the nested jars as they are stored and inflates the entries when they are requested.
+     */
+    public static final String MODE_LAZY = "lazy";
+
+    /**
+     * Like {@link #MODE_LAZY}, but the single jar is mapped in memory and the nested jars that were stored without
+     * compression are read directly from it, instead of being copied to the heap.
+     */
+    public static final String MODE_MAPPED = "mapped";
+
+    /**
+     * Extracts the nested jars to the file system and loads them with a regular {@link URLClassLoader}, this mode
+     * doesn't use this class loader at all, but allows the JVM to use a class data sharing archive for the nested jars.
+     *
+     * <p>The extracted jars are kept in a cache directory and reused by the next launches of the same single jar.
+     */
+    public static final String MODE_EXTRACT = "extract";
+
+    /**
+     * System property with the directory where the {@link #MODE_EXTRACT} mode keeps the extracted jars.
+     */
+    public static final String CACHE_DIR_PROPERTY = "singlejar.cache.dir";
+
+    /**
+     * System property that makes the JVM exit as soon as the main method of the application returns,
+     * used to end the training runs that record the class data sharing archives.
+     */
+    public static final String EXIT_AFTER_MAIN_PROPERTY = "singlejar.exitAfterMain";
+
+    /**
+     * System property with the maximum number of nested jars that are preloaded or indexed at the same time,
+     * defaults to the number of available processors.
+     */
+    public static final String PARALLELISM_PROPERTY = "singlejar.parallelism";
+
+    /**
+     * System property that makes the {@link #MODE_EAGER} mode drop the bytes of the classes as soon as they are
+     * defined. Reading a dropped class as a resource is still possible, but slow, because the nested jar is read again.
+     */
+    public static final String RELEASE_CLASS_BYTES_PROPERTY = "singlejar.releaseClassBytes";
+
+    /**
+     * System property with how many bytes of inflated resources the {@link #MODE_LAZY} modes keep in memory, so the
+     * resources that are read many times are not inflated again every time. The least recently used resources are
+     * dropped first, {@code 0} disables the cache. Defaults to 8 MB.
+     */
+    public static final String RESOURCE_CACHE_SIZE_PROPERTY = "singlejar.resourceCache.size";
+
+    /**
+     * System property that enables the collection of startup and class loading metrics, which are published as
+     * a {@link MetricsMXBean} and as JFR events, when the JVM supports them.
+     */
+    public static final String METRICS_PROPERTY = "singlejar.metrics";
+
+    /**
+     * System property that enables the metrics and prints a summary of them to the standard error when the JVM exits.
+     */
+    public static final String METRICS_SUMMARY_PROPERTY = "singlejar.metrics.summary";
+
+    /**
+     * System property with a file where the names of the classes and resources loaded from the nested jars are
+     * written, in the order they were first requested, until the main method of the application returns.
+     */
+    public static final String RECORD_PROPERTY = "singlejar.record";
+
+    /**
+     * System property that can be set to {@code false} to ignore the {@link #PROFILE_RESOURCE} at startup.
+     */
+    public static final String PREFETCH_PROPERTY = "singlejar.prefetch";
+
+    /**
+     * Index of the nested jars generated at build time, used by the {@link #MODE_LAZY} modes to skip reading the
+     * central directories of the nested jars at startup.
+     */
+    public static final String INDEX_RESOURCE = "META-INF/singlejar.idx";
+    static final int INDEX_MAGIC = 0x534A4958;
+    static final int INDEX_VERSION = 2;
+
+    /**
+     * Names recorded with {@link #RECORD_PROPERTY}, one per line, which are loaded by background threads as soon
+     * as the launcher is created, in the same order.
+     */
+    public static final String PROFILE_RESOURCE = "META-INF/singlejar.profile";
+
+    /**
+     * Names of the classes of the nested jars that are reachable from the application, found at build time.
+     * The modes that preload the nested jars only preload these classes and the resources, the other classes are
+     * indexed and only inflated if they are requested anyway.
+     */
+    public static final String REACHABLE_RESOURCE = "META-INF/singlejar.reachable";
+
+    /**
+     * The service provider files of the nested jars read at build time: for each nested jar, its path, size and CRC
+     * separated by tabs, then each of its service file names followed by the providers, without comments.
+     */
+    public static final String SERVICES_RESOURCE = "META-INF/singlejar.services";
+    static final String SERVICES_PREFIX = "META-INF/services/";
+
+    private static final Entry[] EMPTY = new Entry[0];
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+    private static final String VERSIONS_PREFIX = "META-INF/versions/";
+    private static final int RUNTIME_VERSION = runtimeVersion();
+
+    /**
+     * Packages that may be provided by the JVM, classes in these packages are always requested to the parent first.
+     */
+    private static final String[] PLATFORM_PACKAGES = {
+            "java.", "javax.", "jdk.", "sun.", "com.sun.", "org.w3c.", "org.xml.", "org.ietf.", "org.omg.", "netscape."
+    };
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    /**
+     * Fully built by the constructor and never modified after, so it can be read by many threads at the same time.
+     */
+    private final Map<String, Entry[]> knownObjects = new HashMap<>();
+    private final boolean releaseClassBytes = Boolean.getBoolean(RELEASE_CLASS_BYTES_PROPERTY);
+    private final AtomicLong releasedClassBytes = new AtomicLong();
+    private final LongAdder filteredClassLookups = new LongAdder();
+    private final NameFilter nameFilter;
+
+    /**
+     * The index of the first nested jar that has classes in each package, built by the constructor.
+     */
+    private final Map<String, Integer> packageSources = new HashMap<>();
+    private final boolean parentLacksNestedPackages;
+
+    /**
+     * The merged service provider files, by name, built by the constructor from the {@link #SERVICES_RESOURCE}.
+     */
+    private final Map<String, MergedService> mergedServices;
+    private final String[] internalPaths;
+    private final NestedJarUrlHandler urlHandler = new NestedJarUrlHandler(this);
+    @Nullable
+    private final ResourceCache resourceCache;
+    private final Entry[] manifestEntries;
+    private final AtomicReferenceArray<Manifest> manifests;
+    private final CodeSigner[][] signers;
+    private final AtomicReferenceArray<ProtectionDomain> protectionDomains;
+    @Nullable
+    private final Metrics metrics;
+    @Nullable
+    private volatile Set<String> recorded;
+    /**
+     * Guards {@link #recorded} when it's stopped, instead of this class loader, which anyone can lock.
+     */
+    private final Object recordingLock = new Object();
+    private Entry entry;
+    private byte[] prebuiltIndex;
+    private Map<String, Integer> prebuiltJars;
+    private Map<String, IndexedEntry> storedJars;
+    private ByteBuffer singleJarData;
+    private OffHeapArena arena;
+    private Set<String> reachable;
 
     public SingleJarLauncher(String[] internalPaths, ClassLoader parent) throws IOException {
+        this(internalPaths, parent, MODE_EAGER);
+    }
+
+    public SingleJarLauncher(String[] internalPaths, ClassLoader parent, String mode) throws IOException {
         super(parent);
-        for (String internalPath : internalPaths) {
-            try (InputStream is = Objects.requireNonNull(getClass().getResourceAsStream(internalPath), "Resource not found: " + internalPath);
-                 JarInputStream input = new JarInputStream(is)) {
-                JarEntry entry;
-                while ((entry = input.getNextJarEntry()) != null) {
-                    if (entry.isDirectory()) {
-                        continue;
-                    }
-                    long size = entry.getSize();
-                    byte[] buffer = new byte[size < 0 || size > Integer.MAX_VALUE? 4096 : (int) size];
-                    BufferedInputStream bis = new BufferedInputStream(input);
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    try {
-                        int read;
-                        while ((read = bis.read(buffer)) >= 0) {
-                            bos.write(buffer, 0, read);
-                        }
-                    } catch (IOException ignored) {
-                        continue;
-                    }
+        long start = System.nanoTime();
+        this.parentLacksNestedPackages = parent == null;
+        boolean summary = Boolean.getBoolean(METRICS_SUMMARY_PROPERTY);
+        metrics = summary || Boolean.getBoolean(METRICS_PROPERTY)? new Metrics(mode, this) : null;
+        this.internalPaths = internalPaths.clone();
+
+        boolean lazy;
+        if (MODE_LAZY.equals(mode)) {
+            lazy = true;
+        } else if (MODE_MAPPED.equals(mode)) {
+            lazy = true;
+            mapSingleJar();
+        } else if (MODE_EAGER.equals(mode)) {
+            lazy = false;
+        } else if (MODE_OFF_HEAP.equals(mode)) {
+            lazy = false;
+            arena = new OffHeapArena();
+        } else {
+            throw new IllegalArgumentException("Unknown launcher mode: " + mode);
+        }
+
+        long resourceCacheSize = Long.getLong(RESOURCE_CACHE_SIZE_PROPERTY, 8L << 20);
+        resourceCache = lazy && resourceCacheSize > 0? new ResourceCache(resourceCacheSize) : null;
+        if (lazy) {
+            loadPrebuiltIndex();
+        } else {
+            List<String> reachableNames = readNames(REACHABLE_RESOURCE);
+            reachable = reachableNames != null? new HashSet<>(reachableNames) : null;
+        }
 
-                    this.buffer = bos.toByteArray();
-                    knownObjects.compute(entry.getName(), this::updateKnownObject);
-                    input.closeEntry();
+        // The jars are processed in parallel, but merged in order, so the first jar still wins for duplicated names
+        List<NestedJarContents> nestedJars = readNestedJars(internalPaths, lazy);
+        manifestEntries = new Entry[nestedJars.size()];
+        manifests = new AtomicReferenceArray<>(nestedJars.size());
+        signers = new CodeSigner[nestedJars.size()][];
+        protectionDomains = new AtomicReferenceArray<>(nestedJars.size());
+        for (int jar = 0; jar < nestedJars.size(); jar++) {
+            NestedJarContents contents = nestedJars.get(jar);
+            signers[jar] = contents.signers;
+            String lastPackage = null;
+            for (int i = 0; i < contents.names.size(); i++) {
+                String name = contents.names.get(i);
+                this.entry = contents.entries.get(i);
+                this.entry.jar = jar;
+                knownObjects.compute(name, this::updateKnownObject);
+
+                int slash = name.lastIndexOf('/');
+                if (slash > 0 && name.endsWith(".class") && !name.startsWith("META-INF/")
+                        && (lastPackage == null || lastPackage.length() != slash || !name.startsWith(lastPackage))) {
+                    lastPackage = name.substring(0, slash);
+                    packageSources.putIfAbsent(lastPackage.replace('/', '.'), jar);
+                } else if (name.equals(MANIFEST_NAME)) {
+                    manifestEntries[jar] = entry;
                 }
             }
         }
-        this.buffer = null;
-    }
+        this.nameFilter = new NameFilter(knownObjects.keySet());
+        this.mergedServices = mergeServices();
+        this.entry = null;
+        this.prebuiltIndex = null;
+        this.prebuiltJars = null;
+        this.storedJars = null;
+        this.singleJarData = null;
+        this.arena = null;
+        this.reachable = null;
 
-    private byte[][] updateKnownObject(String key, byte[][] current) {
-        if (current == null) {
-            return new byte[][] {buffer};
+        if (metrics != null) {
+            metrics.constructed(internalPaths.length, start);
+            metrics.register();
+            if (summary) {
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(metrics.summary()), "SingleJarLauncher-Summary"));
+            }
         }
-        current = Arrays.copyOf(current, current.length + 1);
-        current[current.length - 1] = buffer;
-        return current;
     }
 
-    private byte[][] lookup(String name) {
-        byte[][] knownPlaces = knownObjects.get(name);
-        if (knownPlaces != null) {
-            if (knownPlaces.length == 0) {
-                return knownPlaces;
+    private List<NestedJarContents> readNestedJars(String[] internalPaths, boolean lazy) throws IOException {
+        int parallelism = Math.min(Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors()), internalPaths.length);
+        List<NestedJarContents> results = new ArrayList<>(internalPaths.length);
+        if (parallelism <= 1) {
+            for (String internalPath : internalPaths) {
+                results.add(readNestedJar(internalPath, lazy));
             }
-            return knownPlaces;
-        } else {
-            knownObjects.put(name, EMPTY);
-            return EMPTY;
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, task -> {
+            Thread thread = new Thread(task, "SingleJarLauncher-Indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<NestedJarContents>> futures = new ArrayList<>(internalPaths.length);
+            for (String internalPath : internalPaths) {
+                futures.add(executor.submit(() -> readNestedJar(internalPath, lazy)));
+            }
+            for (Future<NestedJarContents> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the nested jars");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
         }
     }
 
-    @Override
-    protected Class<?> findClass(String name) throws ClassNotFoundException {
-        String internalClassName = name.replace('.', '/') + ".class";
-        byte[][] result = lookup(internalClassName);
-        if (result.length == 0) {
-            throw new ClassNotFoundException(name);
+    private NestedJarContents readNestedJar(String internalPath, boolean lazy) throws IOException {
+        long start = System.nanoTime();
+        NestedJarContents contents = new NestedJarContents();
+        if (SINGLE_JAR.equals(internalPath)) {
+            indexSingleJar(contents, lazy);
+        } else if (lazy) {
+            indexNestedJar(internalPath, contents);
+        } else if (reachable != null) {
+            preloadReachable(internalPath, contents);
+        } else {
+            preloadNestedJar(internalPath, contents);
+        }
+        resolveMultiRelease(contents);
+        if (metrics != null) {
+            metrics.nestedJarRead(internalPath, lazy, contents.names.size(), start);
         }
+        return contents;
+    }
+
+    private void preloadNestedJar(String internalPath, NestedJarContents contents) throws IOException {
+        try (InputStream is = Objects.requireNonNull(getClass().getResourceAsStream(internalPath), "Resource not found: " + internalPath);
+             JarInputStream input = new JarInputStream(is)) {
+            // JarInputStream consumes the manifest, so it is written back to keep it as a resource
+            Manifest manifest = input.getManifest();
+            if (manifest != null) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                manifest.write(bos);
+                contents.add(MANIFEST_NAME, preloaded(internalPath, MANIFEST_NAME, bos.toByteArray()));
+            }
+
+            JarEntry entry;
+            while ((entry = input.getNextJarEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String name = entry.getName();
+                long size = entry.getSize();
+                byte[] buffer = new byte[size < 0 || size > Integer.MAX_VALUE? 4096 : (int) size];
+                BufferedInputStream bis = new BufferedInputStream(input);
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                try {
+                    int read;
+                    while ((read = bis.read(buffer)) >= 0) {
+                        bos.write(buffer, 0, read);
+                    }
+                } catch (IOException ignored) {
+                    continue;
+                }
 
-        return defineClass(name, result[0], 0, result[0].length);
+                contents.add(name, preloaded(internalPath, name, bos.toByteArray()));
+                if (contents.signers == null && name.endsWith(".class")) {
+                    // Only known after the entry is fully read, when it was verified
+                    contents.signers = entry.getCodeSigners();
+                }
+                input.closeEntry();
+            }
+        }
     }
 
-    protected URL createJarInJarURL(String resourceName, byte[] resourceData) {
-        URL sendTierUrl;
-        try {
-            sendTierUrl = new URL(null, "NestedJar:"+resourceName, new URLStreamHandler() {
-                InputStream inputStream;
-
-                @Override
-                protected URLConnection openConnection(URL url) throws IOException {
-                    URLConnection connection = new URLConnection(url) {
-                        @Override
-                        public void connect() throws IOException {
-                            if (inputStream != null) {
-                                inputStream.close();
-                            }
+    /**
+     * Reads the {@link #SERVICES_RESOURCE}, the providers of the nested jars that are still the same that were read
+     * at build time are merged, the other nested jars still return their own service files.
+     */
+    private Map<String, MergedService> mergeServices() throws IOException {
+        List<String> lines = readNames(SERVICES_RESOURCE);
+        if (lines == null) {
+            return Collections.emptyMap();
+        }
 
-                            inputStream = new ByteArrayInputStream(resourceData);
-                        }
-                    };
+        Map<String, Integer> jarIndexes = new HashMap<>(internalPaths.length * 2);
+        for (int jar = 0; jar < internalPaths.length; jar++) {
+            jarIndexes.putIfAbsent(internalPaths[jar], jar);
+        }
+
+        // The providers of each service, by the nested jar that has them
+        Map<String, Map<Integer, List<String>>> providers = new HashMap<>();
+        Integer jar = null;
+        List<String> current = null;
+        for (String line : lines) {
+            if (line.startsWith("/")) {
+                String[] columns = line.split("\t");
+                jar = columns.length == 3? jarIndexes.get(columns[0]) : null;
+                if (jar != null && !isSameNestedJar(columns[0], Long.parseLong(columns[1]), Integer.parseInt(columns[2]))) {
+                    jar = null;
+                }
+                current = null;
+            } else if (jar == null) {
+                continue;
+            } else if (line.startsWith(SERVICES_PREFIX)) {
+                current = new ArrayList<>();
+                providers.computeIfAbsent(line, it -> new HashMap<>()).put(jar, current);
+            } else if (current != null) {
+                current.add(line);
+            }
+        }
+
+        Map<String, MergedService> services = new HashMap<>();
+        for (Map.Entry<String, Map<Integer, List<String>>> service : providers.entrySet()) {
+            addMergedService(services, service.getKey(), service.getValue());
+        }
+        return services;
+    }
 
-                    connection.connect();
-                    return connection;
+    /**
+     * The providers of consecutive nested jars that are merged share one URL, so the providers are still listed
+     * in the order of the nested jars, even when some of them were not merged.
+     */
+    private void addMergedService(Map<String, MergedService> services, String name, Map<Integer, List<String>> providers) {
+        Entry[] entries = knownObjects.get(name);
+        if (entries == null) {
+            return;
+        }
+
+        List<URL> urls = new ArrayList<>(1);
+        List<Set<String>> runs = new ArrayList<>(1);
+        Set<String> run = null;
+        for (Entry entry : entries) {
+            List<String> jarProviders = providers.get(entry.jar);
+            if (jarProviders == null) {
+                run = null;
+                urls.add(nestedJarUrl(name, entry));
+                continue;
+            }
+            if (run == null) {
+                run = new LinkedHashSet<>();
+                try {
+                    urls.add(new URL(NestedJarUrlHandler.PROTOCOL, null, -1, "/" + SERVICES_RESOURCE + "/" + runs.size() + "!/" + name, urlHandler));
+                } catch (MalformedURLException e) {
+                    throw new UncheckedIOException(e);
                 }
+                runs.add(run);
+            }
+            run.addAll(jarProviders);
+        }
+        if (runs.isEmpty()) {
+            return;
+        }
+
+        List<Entry> contents = new ArrayList<>(runs.size());
+        for (Set<String> merged : runs) {
+            StringBuilder content = new StringBuilder();
+            for (String provider : merged) {
+                content.append(provider).append('\n');
+            }
+            contents.add(new LoadedEntry(SINGLE_JAR, SERVICES_RESOURCE, content.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        services.put(name, new MergedService(contents, urls));
+    }
+
+    /**
+     * Preloads the resources and the {@link #REACHABLE_RESOURCE reachable} classes of a nested jar, the other
+     * classes are indexed, like the {@link #MODE_LAZY} modes do. Signed jars are fully preloaded, because only
+     * {@link JarInputStream} verifies them.
+     */
+    private void preloadReachable(String internalPath, NestedJarContents contents) throws IOException {
+        URL url = Objects.requireNonNull(getClass().getResource(internalPath), "Resource not found: " + internalPath);
+        NestedJar jar = new NestedJar(internalPath, url);
+        jar.metrics = metrics;
+
+        List<String> names = new ArrayList<>();
+        List<IndexedEntry> entries = new ArrayList<>();
+        try {
+            readCentralDirectory(jar, (name, entry) -> {
+                names.add(name);
+                entries.add(entry);
             });
-        } catch (MalformedURLException ex) {
-            throw new UncheckedIOException(ex);
+        } catch (ZipException e) {
+            preloadNestedJar(internalPath, contents);
+            return;
+        }
+        for (String name : names) {
+            if (name.startsWith("META-INF/") && name.endsWith(".SF")) {
+                preloadNestedJar(internalPath, contents);
+                return;
+            }
         }
 
-        return sendTierUrl;
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            IndexedEntry entry = entries.get(i);
+            if (!name.endsWith(".class") || reachable.contains(name)) {
+                contents.add(name, preloaded(internalPath, name, readBytes(entry)));
+            } else {
+                contents.add(name, entry);
+            }
+        }
     }
 
-    @Override
-    protected URL findResource(String name) {
-        byte[][] result = lookup(name);
-        if (result.length == 0) {
-            return null;
+    /**
+     * Makes the names of a multi-release jar point to the best version for the running JVM, once, so the lookups
+     * don't need to care about it. The versioned names are kept as they are.
+     */
+    private static void resolveMultiRelease(NestedJarContents contents) {
+        if (RUNTIME_VERSION < 9 || Boolean.FALSE.equals(contents.multiRelease)) {
+            return;
+        }
+
+        Map<String, Integer> best = null;
+        Entry manifest = null;
+        int size = contents.names.size();
+        for (int i = 0; i < size; i++) {
+            String name = contents.names.get(i);
+            if (name.equals(MANIFEST_NAME)) {
+                manifest = contents.entries.get(i);
+                continue;
+            }
+            int version = versionOf(name);
+            if (version < 9 || version > RUNTIME_VERSION) {
+                continue;
+            }
+            if (best == null) {
+                best = new HashMap<>();
+            }
+            String baseName = name.substring(name.indexOf('/', VERSIONS_PREFIX.length()) + 1);
+            Integer current = best.get(baseName);
+            if (current == null || versionOf(contents.names.get(current)) < version) {
+                best.put(baseName, i);
+            }
+        }
+
+        if (best == null) {
+            return;
+        }
+        // Opening the manifest of an indexed jar would read the whole jar, so it's only done without the index
+        boolean multiRelease = contents.multiRelease != null? contents.multiRelease : manifest != null && isMultiRelease(manifest);
+        if (!multiRelease) {
+            return;
+        }
+
+        for (int i = 0; i < size; i++) {
+            Integer index = best.remove(contents.names.get(i));
+            if (index != null) {
+                contents.entries.set(i, contents.entries.get(index));
+            }
+        }
+        // Only in the versioned directories
+        for (Map.Entry<String, Integer> versioned : best.entrySet()) {
+            contents.add(versioned.getKey(), contents.entries.get(versioned.getValue()));
         }
-        return createJarInJarURL(name, result[0]);
     }
 
-    @Override
-    protected Enumeration<URL> findResources(String name) {
-        byte[][] result = lookup(name);
-        if (result.length == 0) {
-            return Collections.emptyEnumeration();
+    /**
+     * The version of a {@code META-INF/versions/N/} name, or {@code -1} if it's not versioned.
+     */
+    private static int versionOf(String name) {
+        if (!name.startsWith(VERSIONS_PREFIX)) {
+            return -1;
+        }
+        int slash = name.indexOf('/', VERSIONS_PREFIX.length());
+        if (slash < 0 || slash == name.length() - 1) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(VERSIONS_PREFIX.length(), slash));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isMultiRelease(Entry manifestEntry) {
+        try (InputStream is = manifestEntry.open()) {
+            return "true".equalsIgnoreCase(new Manifest(is).getMainAttributes().getValue("Multi-Release"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int runtimeVersion() {
+        String version = System.getProperty("java.specification.version", "1.8");
+        try {
+            return Integer.parseInt(version.startsWith("1.")? version.substring(2) : version);
+        } catch (NumberFormatException e) {
+            return 8;
+        }
+    }
+
+    private Entry preloaded(String internalPath, String name, byte[] data) {
+        if (metrics != null) {
+            metrics.inflated(data.length);
+        }
+        return arena != null? arena.store(data) : new LoadedEntry(internalPath, name, data);
+    }
+
+    private void mapSingleJar() throws IOException {
+        ByteBuffer mapped = mapSingleJarFile();
+        if (mapped == null) {
+            return;
         }
-        return Collections.enumeration(Stream.of(result).map(bytes-> createJarInJarURL(name, bytes)).collect(Collectors.toList()));
+
+        Map<String, IndexedEntry> jars = new HashMap<>();
+        readCentralDirectory(new NestedJar(SINGLE_JAR, mapped), (name, indexed) -> {
+            if (indexed.method == ZipEntry.STORED && name.startsWith("META-INF/lib/")) {
+                jars.put("/" + name, indexed);
+            }
+        });
+        this.storedJars = jars;
+        this.singleJarData = mapped;
     }
 
+    /**
+     * Maps the whole single jar in memory, or returns {@code null} if it's not a file or is too big to be mapped.
+     */
     @Nullable
-    @Override
-    public InputStream getResourceAsStream(String name) {
-        byte[][] result = lookup(name);
-        if (result.length == 0) {
+    private ByteBuffer mapSingleJarFile() throws IOException {
+        File file;
+        try {
+            file = new File(getClass().getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
             return null;
         }
-        return new ByteArrayInputStream(result[0]);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // A single buffer can't map more than 2GB
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
     }
 
-    public static void main(String[] args) throws IOException {
-        Class<?> clazz = SingleJarLauncher.class;
-        URL jarUrl = clazz.getProtectionDomain().getCodeSource().getLocation();
-        String[] libs;
-        try (JarFile jarFile = new JarFile(jarUrl.getFile())) {
-            try (Stream<JarEntry> entryStream = jarFile.stream()) {
-                libs = entryStream.filter(it -> {
-                            Path parent = Paths.get(it.getName()).getParent();
-                            if (parent == null) {
-                                return false;
-                            }
-                            return parent.equals(Paths.get("META-INF/lib"));
-                        })
-                        .map(it -> Paths.get("/", it.getName()).toString().replace('\\', '/').replaceFirst("^//", "/"))
-                        .toArray(String[]::new);
+    /**
+     * Indexes the single jar itself, the modes that preload the nested jars also preload its entries,
+     * except the nested jars.
+     */
+    private void indexSingleJar(NestedJarContents contents, boolean lazy) throws IOException {
+        ByteBuffer data = singleJarData != null? singleJarData : mapSingleJarFile();
+        if (data == null) {
+            throw new IOException("The single jar can't be indexed: " + getClass().getProtectionDomain().getCodeSource().getLocation());
+        }
+        NestedJar jar = new NestedJar(SINGLE_JAR, data);
+        jar.metrics = metrics;
+        if (lazy) {
+            readCentralDirectory(jar, contents::add);
+            return;
+        }
+
+        List<String> names = new ArrayList<>();
+        List<IndexedEntry> entries = new ArrayList<>();
+        readCentralDirectory(jar, (name, entry) -> {
+            names.add(name);
+            entries.add(entry);
+        });
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            IndexedEntry entry = entries.get(i);
+            if (name.startsWith("META-INF/lib/")) {
+                contents.add(name, entry);
+            } else {
+                contents.add(name, preloaded(SINGLE_JAR, name, readBytes(entry)));
             }
         }
+    }
 
-        SingleJarLauncher loader = new SingleJarLauncher(libs, null);
+    private static byte[] readBytes(IndexedEntry entry) throws IOException {
+        ByteBuffer content = entry.read();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        return bytes;
+    }
 
-        URLClassLoader urlClassLoader = new URLClassLoader(new URL[]{jarUrl}, loader);
-        String className = clazz.getName();
-        className = className.substring(0, className.length() - 18);
+    private void indexNestedJar(String internalPath, NestedJarContents contents) throws IOException {
+        IndexedEntry stored = storedJars != null? storedJars.get(internalPath) : null;
+        NestedJar jar;
+        if (stored != null) {
+            jar = new NestedJar(internalPath, stored.slice());
+        } else {
+            URL url = Objects.requireNonNull(getClass().getResource(internalPath), "Resource not found: " + internalPath);
+            jar = new NestedJar(internalPath, url);
+        }
+        jar.metrics = metrics;
 
-        Thread.currentThread().setContextClassLoader(urlClassLoader);
+        Integer position = prebuiltJars != null? prebuiltJars.get(internalPath) : null;
+        if (position != null && indexFromPrebuilt(jar, position, contents)) {
+            return;
+        }
 
         try {
-            Class<?> loadedClass = urlClassLoader.loadClass(className);
-            Method main = loadedClass.getDeclaredMethod("main", String[].class);
-            main.invoke(null, (Object) args);
-        } catch (ReflectiveOperationException e) {
-            throw new ExceptionInInitializerError(e);
+            readCentralDirectory(jar, contents::add);
+        } catch (ZipException e) {
+            // Not something that can be indexed, like ZIP64 jars, JarInputStream can still read them
+            contents.clear();
+            preloadNestedJar(internalPath, contents);
+        }
+    }
+
+    private void loadPrebuiltIndex() throws IOException {
+        byte[] data;
+        try (InputStream is = getClass().getResourceAsStream("/" + INDEX_RESOURCE)) {
+            if (is == null) {
+                return;
+            }
+            data = readFully(is, -1);
+        }
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        if (input.readInt() != INDEX_MAGIC || input.readUnsignedShort() != INDEX_VERSION) {
+            return;
+        }
+
+        int jarCount = input.readInt();
+        Map<String, Integer> jars = new HashMap<>(jarCount * 2);
+        for (int i = 0; i < jarCount; i++) {
+            int position = data.length - input.available();
+            String path = input.readUTF();
+            input.skipBytes(8 + 4 + 1 + 4);
+            input.skipBytes(input.readInt());
+            jars.put(path, position);
+        }
+
+        this.prebuiltIndex = data;
+        this.prebuiltJars = jars;
+    }
+
+    private boolean indexFromPrebuilt(NestedJar jar, int position, NestedJarContents contents) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(prebuiltIndex, position, prebuiltIndex.length - position));
+        input.readUTF();
+        long size = input.readLong();
+        int crc = input.readInt();
+        boolean multiRelease = input.readBoolean();
+
+        // The index is only trusted if it was generated for the exact same nested jar
+        if (!isSameNestedJar(jar.path, size, crc)) {
+            return false;
+        }
+        contents.multiRelease = multiRelease;
+
+        int count = input.readInt();
+        input.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = input.readUTF();
+            int method = input.readUnsignedShort();
+            int localHeaderOffset = input.readInt();
+            int compressedSize = input.readInt();
+            int entrySize = input.readInt();
+            int entryCrc = input.readInt();
+            contents.add(name, new IndexedEntry(jar, localHeaderOffset, method, compressedSize, entrySize, entryCrc));
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the nested jar has the size and CRC of the one that a file generated at build time was made for.
+     */
+    private boolean isSameNestedJar(String internalPath, long size, int crc) throws IOException {
+        IndexedEntry stored = storedJars != null? storedJars.get(internalPath) : null;
+        if (stored != null) {
+            return stored.size == size && stored.crc == crc;
+        }
+
+        URL url = getClass().getResource(internalPath);
+        URLConnection connection = url != null? url.openConnection() : null;
+        if (!(connection instanceof JarURLConnection)) {
+            return false;
+        }
+        JarEntry nestedJarEntry = ((JarURLConnection) connection).getJarEntry();
+        return nestedJarEntry.getSize() == size && (int) nestedJarEntry.getCrc() == crc;
+    }
+
+    private static byte[] readFully(InputStream input, long sizeHint) throws IOException {
+        if (sizeHint > Integer.MAX_VALUE - 8) {
+            throw new IOException("The nested jar is too big to be indexed: " + sizeHint + " bytes");
+        }
+        byte[] data = new byte[sizeHint < 0? 8192 : (int) sizeHint];
+        int length = 0;
+        int read;
+        while ((read = input.read(data, length, data.length - length)) >= 0) {
+            length += read;
+            if (length == data.length) {
+                int next = input.read();
+                if (next < 0) {
+                    break;
+                }
+                data = Arrays.copyOf(data, Math.max(data.length * 2, 8192));
+                data[length++] = (byte) next;
+            }
+        }
+        return length == data.length? data : Arrays.copyOf(data, length);
+    }
+
+    /**
+     * Walks the central directory of a jar without inflating anything, reporting every file entry that it contains.
+     */
+    static void readCentralDirectory(NestedJar jar, BiConsumer<String, IndexedEntry> consumer) throws IOException {
+        ByteBuffer data = jar.data();
+        int end = data.limit() - Zip.END_HEADER_SIZE;
+        int minEnd = Math.max(0, end - 0xFFFF);
+        while (end >= minEnd && data.getInt(end) != Zip.END_SIGNATURE) {
+            end--;
+        }
+        if (end < minEnd) {
+            throw new ZipException("End of central directory not found in " + jar.path);
+        }
+
+        int count = data.getShort(end + 10) & 0xFFFF;
+        long directorySize = data.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = data.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+            throw new ZipException("ZIP64 jars are not supported: " + jar.path);
+        }
+
+        // Jars with a prefix, like self-extracting archives, have all offsets shifted by the prefix size
+        int prefix = (int) (end - directorySize - directoryOffset);
+        if (prefix < 0) {
+            throw new ZipException("Invalid central directory in " + jar.path);
+        }
+
+        byte[] nameBuffer = new byte[256];
+        int pos = (int) (directoryOffset + prefix);
+        for (int i = 0; i < count; i++) {
+            if (data.getInt(pos) != Zip.CENTRAL_SIGNATURE) {
+                throw new ZipException("Invalid central directory entry in " + jar.path);
+            }
+            int method = data.getShort(pos + 10) & 0xFFFF;
+            int crc = data.getInt(pos + 16);
+            int compressedSize = data.getInt(pos + 20);
+            int size = data.getInt(pos + 24);
+            int nameLength = data.getShort(pos + 28) & 0xFFFF;
+            int extraLength = data.getShort(pos + 30) & 0xFFFF;
+            int commentLength = data.getShort(pos + 32) & 0xFFFF;
+            int localHeaderOffset = data.getInt(pos + 42);
+            if (compressedSize < 0 || size < 0 || localHeaderOffset < 0) {
+                throw new ZipException("ZIP64 entries are not supported: " + jar.path);
+            }
+
+            if (nameBuffer.length < nameLength) {
+                nameBuffer = new byte[nameLength];
+            }
+            for (int j = 0; j < nameLength; j++) {
+                nameBuffer[j] = data.get(pos + Zip.CENTRAL_HEADER_SIZE + j);
+            }
+            String name = new String(nameBuffer, 0, nameLength, StandardCharsets.UTF_8);
+            if (!name.endsWith("/")) {
+                consumer.accept(name, new IndexedEntry(jar, localHeaderOffset + prefix, method, compressedSize, size, crc));
+            }
+            pos += Zip.CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private Entry[] updateKnownObject(String key, Entry[] current) {
+        if (current == null) {
+            return new Entry[] {entry};
+        }
+        current = Arrays.copyOf(current, current.length + 1);
+        current[current.length - 1] = entry;
+        return current;
+    }
+
+    /**
+     * Classes of packages that are only found in the nested jars skip the parent, when it's known to not have them:
+     * the bootstrap class loader, except for the {@link #PLATFORM_PACKAGES}. Any other parent may have the same
+     * packages, like the class loader of the single jar, so it's still asked first.
+     */
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!parentLacksNestedPackages || !isNestedPackage(packageName(name))) {
+            return super.loadClass(name, resolve);
+        }
+
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loadedClass = findLoadedClass(name);
+            if (loadedClass == null) {
+                try {
+                    loadedClass = findClass(name);
+                } catch (ClassNotFoundException e) {
+                    // Already searched here, only the parent is left
+                    ClassLoader parent = getParent();
+                    loadedClass = parent != null? parent.loadClass(name) : Class.forName(name, false, null);
+                }
+            }
+            if (resolve) {
+                resolveClass(loadedClass);
+            }
+            return loadedClass;
+        }
+    }
+
+    private boolean isNestedPackage(@Nullable String packageName) {
+        if (packageName == null || !packageSources.containsKey(packageName)) {
+            return false;
+        }
+        for (String platformPackage : PLATFORM_PACKAGES) {
+            if (packageName.startsWith(platformPackage)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Nullable
+    private static String packageName(String className) {
+        int dot = className.lastIndexOf('.');
+        return dot > 0? className.substring(0, dot) : null;
+    }
+
+    /**
+     * Defines the package of the class once, with the attributes from the manifest of the nested jar which has it.
+     */
+    @SuppressWarnings("deprecation")
+    private void definePackage(String className) {
+        String packageName = packageName(className);
+        if (packageName == null || getPackage(packageName) != null) {
+            return;
+        }
+
+        Integer source = packageSources.get(packageName);
+        Manifest manifest = source != null? manifest(source) : null;
+        try {
+            if (manifest == null) {
+                definePackage(packageName, null, null, null, null, null, null, null);
+                return;
+            }
+
+            Attributes main = manifest.getMainAttributes();
+            Attributes own = manifest.getAttributes(packageName.replace('.', '/') + '/');
+            URL sealBase = null;
+            if ("true".equalsIgnoreCase(attribute(own, main, Attributes.Name.SEALED))) {
+                sealBase = protectionDomain(source).getCodeSource().getLocation();
+            }
+            definePackage(packageName,
+                    attribute(own, main, Attributes.Name.SPECIFICATION_TITLE),
+                    attribute(own, main, Attributes.Name.SPECIFICATION_VERSION),
+                    attribute(own, main, Attributes.Name.SPECIFICATION_VENDOR),
+                    attribute(own, main, Attributes.Name.IMPLEMENTATION_TITLE),
+                    attribute(own, main, Attributes.Name.IMPLEMENTATION_VERSION),
+                    attribute(own, main, Attributes.Name.IMPLEMENTATION_VENDOR),
+                    sealBase);
+        } catch (IllegalArgumentException ignored) {
+            // Another thread has defined it first
+        }
+    }
+
+    /**
+     * The same instance is shared by all classes of each nested jar.
+     */
+    private ProtectionDomain protectionDomain(int jar) {
+        ProtectionDomain protectionDomain = protectionDomains.get(jar);
+        if (protectionDomain == null) {
+            URL location = SINGLE_JAR.equals(internalPaths[jar])
+                    ? getClass().getProtectionDomain().getCodeSource().getLocation()
+                    : getClass().getResource(internalPaths[jar]);
+            CodeSource codeSource = new CodeSource(location, signers[jar]);
+            protectionDomains.compareAndSet(jar, null, new ProtectionDomain(codeSource, getPermissions(codeSource), this, null));
+            protectionDomain = protectionDomains.get(jar);
+        }
+        return protectionDomain;
+    }
+
+    @Nullable
+    private static String attribute(@Nullable Attributes own, Attributes main, Attributes.Name name) {
+        String value = own != null? own.getValue(name) : null;
+        return value != null? value : main.getValue(name);
+    }
+
+    @Nullable
+    private Manifest manifest(int jar) {
+        Manifest manifest = manifests.get(jar);
+        if (manifest == null) {
+            manifest = new Manifest();
+            Entry entry = manifestEntries[jar];
+            if (entry != null) {
+                try (InputStream is = entry.open()) {
+                    manifest.read(is);
+                } catch (IOException e) {
+                    manifest = new Manifest();
+                }
+            }
+            manifests.compareAndSet(jar, null, manifest);
+            manifest = manifests.get(jar);
+        }
+        return manifest.getMainAttributes().isEmpty()? null : manifest;
+    }
+
+    private Entry[] lookup(String name) {
+        // Everything that exists was added by the constructor, so there's no need to remember the missing names
+        Entry[] knownPlaces = knownObjects.get(name);
+        if (metrics != null) {
+            metrics.lookup(knownPlaces != null);
+        }
+        Set<String> recording = recorded;
+        if (recording != null && knownPlaces != null) {
+            recording.add(name);
+        }
+        return knownPlaces != null? knownPlaces : EMPTY;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        long start = System.nanoTime();
+        if (!nameFilter.mightContainClass(name)) {
+            // Most missing classes end here, before the internal name is even built
+            filteredClassLookups.increment();
+            if (metrics != null) {
+                metrics.lookup(false);
+            }
+            throw new ClassNotFoundException(name);
+        }
+
+        String internalClassName = name.replace('.', '/') + ".class";
+        Entry[] result = lookup(internalClassName);
+        if (result.length == 0) {
+            throw new ClassNotFoundException(name);
+        }
+
+        ByteBuffer bytes;
+        try {
+            bytes = result[0].read();
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+        definePackage(name);
+        Class<?> definedClass = defineClass(name, bytes, protectionDomain(result[0].jar));
+        if (releaseClassBytes) {
+            releasedClassBytes.addAndGet(result[0].release());
+        }
+        if (metrics != null) {
+            metrics.classDefined(name, start);
+        }
+        return definedClass;
+    }
+
+    /**
+     * How many bytes of class files were dropped after the classes were defined, when
+     * {@link #RELEASE_CLASS_BYTES_PROPERTY} is enabled.
+     */
+    public long getReleasedClassBytes() {
+        return releasedClassBytes.get();
+    }
+
+    /**
+     * How many classes were known to be missing by the {@link NameFilter}, without looking them up.
+     */
+    public long getFilteredClassLookups() {
+        return filteredClassLookups.sum();
+    }
+
+    /**
+     * The counters of the resource cache, see {@link #RESOURCE_CACHE_SIZE_PROPERTY}, or {@code null} if it's disabled.
+     */
+    @Nullable
+    public ResourceCacheStats getResourceCacheStats() {
+        return resourceCache != null? resourceCache.stats() : null;
+    }
+
+    /**
+     * Starts recording the names that are found in the nested jars, they are written to the given file by
+     * {@link #stopRecording(Path)} or when the JVM exits, whichever happens first.
+     */
+    void startRecording(Path output) {
+        recorded = Collections.synchronizedSet(new LinkedHashSet<>());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                stopRecording(output);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "SingleJarLauncher-Recorder"));
+    }
+
+    void stopRecording(Path output) throws IOException {
+        Set<String> recording;
+        synchronized (recordingLock) {
+            recording = recorded;
+            if (recording == null) {
+                return;
+            }
+            recorded = null;
+        }
+
+        List<String> lines = new ArrayList<>(recording.size() + 1);
+        lines.add("# Recorded by " + SingleJarLauncher.class.getSimpleName() + ", loaded in this order at startup");
+        synchronized (recording) {
+            lines.addAll(recording);
+        }
+        Path parent = output.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(output, lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the {@link #PROFILE_RESOURCE} of the single jar, or returns an empty list if it doesn't have one.
+     */
+    static List<String> readProfile() throws IOException {
+        List<String> names = readNames(PROFILE_RESOURCE);
+        return names != null? names : Collections.emptyList();
+    }
+
+    /**
+     * Reads a list of names generated at build time, one per line, or returns {@code null} if the single jar
+     * doesn't have it.
+     */
+    @Nullable
+    private static List<String> readNames(String resource) throws IOException {
+        try (InputStream is = SingleJarLauncher.class.getResourceAsStream("/" + resource)) {
+            if (is == null) {
+                return null;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            return reader.lines()
+                    .map(String::trim)
+                    .filter(it -> !it.isEmpty() && !it.startsWith("#"))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Defines the given classes and inflates the given resources in background threads, in order, so they are
+     * most likely ready when the application requests them. Everything else is still loaded on demand.
+     *
+     * <p>Only the processors left by the main thread are used, so nothing is done when there's only one.
+     */
+    void prefetch(List<String> names) {
+        int parallelism = Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+        int threads = Math.min(Math.min(parallelism - 1, 4), names.size());
+        AtomicInteger next = new AtomicInteger();
+        Runnable task = () -> {
+            int index;
+            while ((index = next.getAndIncrement()) < names.size()) {
+                prefetch(names.get(index));
+            }
+        };
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(task, "SingleJarLauncher-Prefetch");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            thread.start();
+        }
+    }
+
+    private void prefetch(String name) {
+        Entry[] knownPlaces = knownObjects.get(name);
+        if (knownPlaces == null) {
+            return;
+        }
+        try {
+            if (name.endsWith(".class") && !name.startsWith("META-INF/") && name.indexOf('-') < 0) {
+                loadClass(name.substring(0, name.length() - 6).replace('/', '.'), false);
+            } else {
+                knownPlaces[0].prefetch();
+            }
+        } catch (ClassNotFoundException | LinkageError | IOException ignored) {
+            // The application gets the same failure when it requests it
+        }
+    }
+
+    /**
+     * Creates a {@code NestedJar:/META-INF/lib/some.jar!/the/resource} URL, opened by the shared {@link #urlHandler}.
+     */
+    URL nestedJarUrl(String name, Entry entry) {
+        try {
+            return new URL(NestedJarUrlHandler.PROTOCOL, null, -1, internalPaths[entry.jar] + "!/" + name, urlHandler);
+        } catch (MalformedURLException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        MergedService merged = mergedService(name);
+        if (merged != null) {
+            return merged.urls.get(0);
+        }
+        Entry[] result = lookup(name);
+        if (result.length == 0) {
+            return null;
+        }
+        return nestedJarUrl(name, result[0]);
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) {
+        MergedService merged = mergedService(name);
+        if (merged != null) {
+            return Collections.enumeration(merged.urls);
+        }
+        Entry[] result = lookup(name);
+        if (result.length == 0) {
+            return Collections.emptyEnumeration();
+        }
+        return new NestedJarUrls(this, name, result);
+    }
+
+    @Nullable
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        try {
+            MergedService merged = mergedService(name);
+            if (merged != null) {
+                // The same as the first URL of getResources, which may be merged or not
+                return merged.urls.get(0).openStream();
+            }
+            Entry[] result = lookup(name);
+            if (result.length == 0) {
+                return null;
+            }
+            return openResource(name, result[0]);
+        } catch (IOException e) {
+            // Like the JDK class loaders, a resource that can't be opened is not found
+            return null;
+        }
+    }
+
+    @Nullable
+    private MergedService mergedService(String name) {
+        return name.startsWith(SERVICES_PREFIX)? mergedServices.get(name) : null;
+    }
+
+    /**
+     * Opens a resource through the {@link #resourceCache}, when it's enabled. Classes are not cached, they are
+     * rarely read again after they are defined.
+     */
+    InputStream openResource(String name, Entry entry) throws IOException {
+        ResourceCache cache = resourceCache;
+        if (cache == null || !(entry instanceof IndexedEntry) || name.endsWith(".class")) {
+            return entry.open();
+        }
+        return cache.open((IndexedEntry) entry);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Class<?> clazz = SingleJarLauncher.class;
+        URL jarUrl = clazz.getProtectionDomain().getCodeSource().getLocation();
+        String[] libs;
+        Set<String> applicationPackages;
+        String mode = System.getProperty(MODE_PROPERTY);
+        String singleLoaderValue = System.getProperty(SINGLE_LOADER_PROPERTY);
+        try (JarFile jarFile = new JarFile(jarUrl.getFile())) {
+            Manifest manifest = jarFile.getManifest();
+            if (manifest != null) {
+                if (mode == null) {
+                    mode = manifest.getMainAttributes().getValue(MODE_ATTRIBUTE);
+                }
+                if (singleLoaderValue == null) {
+                    singleLoaderValue = manifest.getMainAttributes().getValue(SINGLE_LOADER_ATTRIBUTE);
+                }
+            }
+            try (Stream<JarEntry> entryStream = jarFile.stream()) {
+                libs = entryStream.filter(it -> {
+                            Path parent = Paths.get(it.getName()).getParent();
+                            if (parent == null) {
+                                return false;
+                            }
+                            return parent.equals(Paths.get("META-INF/lib"));
+                        })
+                        .map(it -> Paths.get("/", it.getName()).toString().replace('\\', '/').replaceFirst("^//", "/"))
+                        .toArray(String[]::new);
+            }
+            try (Stream<JarEntry> entryStream = jarFile.stream()) {
+                applicationPackages = entryStream.map(JarEntry::getName)
+                        .filter(it -> it.endsWith(".class") && !it.startsWith("META-INF/") && it.indexOf('/') > 0)
+                        .map(it -> it.substring(0, it.lastIndexOf('/')).replace('/', '.'))
+                        .collect(Collectors.toSet());
+            }
+        }
+
+        String className = clazz.getName();
+        className = className.substring(0, className.length() - 18);
+
+        if (mode == null || mode.isEmpty()) {
+            mode = MODE_EAGER;
+        }
+        String recordProperty = System.getProperty(RECORD_PROPERTY);
+        Path record = recordProperty != null && !recordProperty.isEmpty()? Paths.get(recordProperty) : null;
+        boolean singleLoader = Boolean.parseBoolean(singleLoaderValue);
+        SingleJarLauncher launcher = null;
+        ClassLoader applicationLoader;
+        if (MODE_EXTRACT.equals(mode)) {
+            URL[] extracted = ExtractionCache.extract(jarUrl, className, libs);
+            if (singleLoader) {
+                URL[] urls = Arrays.copyOf(extracted, extracted.length + 1);
+                urls[extracted.length] = jarUrl;
+                applicationLoader = new URLClassLoader(urls, null);
+            } else {
+                applicationLoader = new ApplicationLoader(jarUrl, new URLClassLoader(extracted, null), Collections.emptySet());
+            }
+        } else {
+            if (singleLoader) {
+                // After the nested jars, so they still win for duplicated names, like when they were the parent
+                libs = Arrays.copyOf(libs, libs.length + 1);
+                libs[libs.length - 1] = SINGLE_JAR;
+            }
+            launcher = new SingleJarLauncher(libs, null, mode);
+            if (record != null) {
+                launcher.startRecording(record);
+            } else if (!MODE_EAGER.equals(mode) && !MODE_OFF_HEAP.equals(mode)
+                    && !"false".equalsIgnoreCase(System.getProperty(PREFETCH_PROPERTY))) {
+                // The eager modes already have everything in memory, there's nothing to prefetch
+                launcher.prefetch(readProfile());
+            }
+            if (singleLoader) {
+                applicationLoader = launcher;
+            } else {
+                // Packages split with the nested jars keep asking the launcher first, like before
+                applicationPackages.removeIf(launcher.packageSources::containsKey);
+                applicationLoader = new ApplicationLoader(jarUrl, launcher, applicationPackages);
+            }
+        }
+
+        Thread.currentThread().setContextClassLoader(applicationLoader);
+
+        try {
+            Class<?> loadedClass = applicationLoader.loadClass(className);
+            Method main = loadedClass.getDeclaredMethod("main", String[].class);
+            main.invoke(null, (Object) args);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+
+        if (launcher != null && record != null) {
+            launcher.stopRecording(record);
+        }
+
+        if (Boolean.getBoolean(EXIT_AFTER_MAIN_PROPERTY)) {
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Opens the URLs of all the resources of a launcher, finding their entries again from the URL.
+     */
+    static final class NestedJarUrlHandler extends URLStreamHandler {
+        static final String PROTOCOL = "NestedJar";
+
+        private final SingleJarLauncher launcher;
+        private final long lastModified;
+
+        NestedJarUrlHandler(SingleJarLauncher launcher) {
+            this.launcher = launcher;
+            long singleJarModified = 0;
+            try {
+                singleJarModified = new File(launcher.getClass().getProtectionDomain().getCodeSource().getLocation().toURI()).lastModified();
+            } catch (URISyntaxException | IllegalArgumentException | SecurityException | NullPointerException ignored) {
+                // Unknown, like in any URLConnection
+            }
+            this.lastModified = singleJarModified;
+        }
+
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            String file = url.getFile();
+            int separator = file.indexOf("!/");
+            if (separator < 0) {
+                throw new MalformedURLException("Not a nested jar resource: " + url);
+            }
+
+            String name = file.substring(separator + 2);
+            if (file.startsWith(SERVICES_RESOURCE + "/", 1)) {
+                MergedService merged = launcher.mergedServices.get(name);
+                int run;
+                try {
+                    run = Integer.parseInt(file.substring(SERVICES_RESOURCE.length() + 2, separator));
+                } catch (NumberFormatException e) {
+                    run = -1;
+                }
+                if (merged != null && run >= 0 && run < merged.entries.size()) {
+                    return new NestedJarConnection(url, launcher, name, merged.entries.get(run), lastModified);
+                }
+                throw new FileNotFoundException(url.toString());
+            }
+            for (Entry entry : launcher.lookup(name)) {
+                if (file.regionMatches(0, launcher.internalPaths[entry.jar], 0, separator)
+                        && launcher.internalPaths[entry.jar].length() == separator) {
+                    return new NestedJarConnection(url, launcher, name, entry, lastModified);
+                }
+            }
+            throw new FileNotFoundException(url.toString());
+        }
+    }
+
+    static final class NestedJarConnection extends URLConnection {
+        private final SingleJarLauncher launcher;
+        private final String name;
+        private final Entry entry;
+        private final long lastModified;
+
+        NestedJarConnection(URL url, SingleJarLauncher launcher, String name, Entry entry, long lastModified) {
+            super(url);
+            this.launcher = launcher;
+            this.name = name;
+            this.entry = entry;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            return launcher.openResource(name, entry);
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return entry.size();
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * The providers of a service from all merged nested jars, with the URLs returned for it.
+     */
+    static final class MergedService {
+        /**
+         * The merged providers of each run of consecutive merged nested jars.
+         */
+        final List<Entry> entries;
+        final List<URL> urls;
+
+        MergedService(List<Entry> entries, List<URL> urls) {
+            this.entries = entries;
+            this.urls = Collections.unmodifiableList(urls);
+        }
+    }
+
+    /**
+     * Creates the URLs only as they are requested.
+     */
+    static final class NestedJarUrls implements Enumeration<URL> {
+        private final SingleJarLauncher launcher;
+        private final String name;
+        private final Entry[] entries;
+        private int next;
+
+        NestedJarUrls(SingleJarLauncher launcher, String name, Entry[] entries) {
+            this.launcher = launcher;
+            this.name = name;
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return next < entries.length;
+        }
+
+        @Override
+        public URL nextElement() {
+            if (next >= entries.length) {
+                throw new NoSuchElementException();
+            }
+            return launcher.nestedJarUrl(name, entries[next++]);
+        }
+    }
+
+    /**
+     * Loads the classes of the application from the single jar, skipping the launcher for the packages that
+     * only exist in the application.
+     */
+    static final class ApplicationLoader extends URLClassLoader {
+        static {
+            registerAsParallelCapable();
+        }
+
+        private final Set<String> packages;
+
+        ApplicationLoader(URL jarUrl, ClassLoader parent, Set<String> packages) {
+            super(new URL[]{jarUrl}, parent);
+            this.packages = packages;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            String packageName = packageName(name);
+            if (packageName == null || !packages.contains(packageName)) {
+                return super.loadClass(name, resolve);
+            }
+
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loadedClass = findLoadedClass(name);
+                if (loadedClass == null) {
+                    try {
+                        loadedClass = findClass(name);
+                    } catch (ClassNotFoundException e) {
+                        // Already searched here, only the parent is left
+                        loadedClass = getParent().loadClass(name);
+                    }
+                }
+                if (resolve) {
+                    resolveClass(loadedClass);
+                }
+                return loadedClass;
+            }
+        }
+    }
+
+    /**
+     * Keeps the nested jars extracted in a directory per version of the single jar, shared by all the processes
+     * that are running the same version.
+     *
+     * <p>Each version is extracted to a temporary directory which is atomically renamed when it's complete, and is
+     * protected by a shared file lock while it's being used, other processes only delete the versions that
+     * nobody is holding. They are renamed back to a temporary directory before being deleted, so a version
+     * directory is always complete, and the extracted jars are still checked against the single jar before
+     * being reused.
+     *
+     * <p>The cache directory must be private to the current user, otherwise other users could replace the
+     * extracted jars.
+     */
+    static final class ExtractionCache {
+        private static final long STALE_TEMPORARY_MILLIS = 24 * 60 * 60 * 1000L;
+        private static final String RETIRED_INFIX = ".tmp-retired-";
+        private static final String LOCK_SUFFIX = ".lock";
+
+        /**
+         * Held shared while a version lock is opened and locked, and exclusively while the lock files of the
+         * versions that are gone are deleted, so a lock file is never deleted between being opened and locked.
+         */
+        private static final String EVICTION_LOCK = "eviction.lock";
+
+        /**
+         * Kept open until the JVM exits, so the lock is never released while the extracted jars are in use.
+         */
+        private static FileChannel versionLock;
+
+        private ExtractionCache() {
+            throw new UnsupportedOperationException();
+        }
+
+        static URL[] extract(URL jarUrl, String application, String[] internalPaths) throws IOException {
+            Path cache = cacheDirectory().resolve(application);
+            Files.createDirectories(cache);
+
+            Path directory;
+            try (JarFile jarFile = new JarFile(jarUrl.getFile())) {
+                String version = version(jarFile, internalPaths);
+                lock(cache, version);
+                directory = cache.resolve(version);
+                if (!isIntact(jarFile, internalPaths, directory)) {
+                    if (Files.isDirectory(directory)) {
+                        try {
+                            retire(directory);
+                        } catch (IOException | UncheckedIOException ignored) {
+                            // Already replaced by another process, or not completely deleted
+                        }
+                    }
+                    publish(jarFile, internalPaths, directory);
+                    if (!isIntact(jarFile, internalPaths, directory)) {
+                        throw new IOException("The extracted jars at " + directory + " are damaged and could not be replaced");
+                    }
+                }
+                evictStaleVersions(cache, version);
+            }
+
+            URL[] urls = new URL[internalPaths.length];
+            for (int i = 0; i < internalPaths.length; i++) {
+                urls[i] = directory.resolve(fileName(internalPaths[i])).toUri().toURL();
+            }
+            return urls;
+        }
+
+        /**
+         * The {@link #CACHE_DIR_PROPERTY} or {@code .singlejar/cache} in the user home. Where it's supported, it must
+         * be owned by the current user and its permissions are restricted to the owner.
+         */
+        private static Path cacheDirectory() throws IOException {
+            String configured = System.getProperty(CACHE_DIR_PROPERTY);
+            Path root = configured != null && !configured.isEmpty()? Paths.get(configured)
+                    : Paths.get(System.getProperty("user.home"), ".singlejar", "cache");
+            if (!root.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Files.createDirectories(root);
+                return root;
+            }
+
+            Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rwx------");
+            Files.createDirectories(root, PosixFilePermissions.asFileAttribute(ownerOnly));
+            UserPrincipal owner = Files.getOwner(root);
+            if (!owner.equals(currentUser(root))) {
+                throw new IOException("The cache directory " + root + " is owned by " + owner.getName()
+                        + ", set " + CACHE_DIR_PROPERTY + " to a directory of the current user");
+            }
+            if (!Files.getPosixFilePermissions(root).equals(ownerOnly)) {
+                Files.setPosixFilePermissions(root, ownerOnly);
+            }
+            return root;
+        }
+
+        private static UserPrincipal currentUser(Path root) throws IOException {
+            try {
+                return root.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+            } catch (UserPrincipalNotFoundException e) {
+                // Like the users without a name in some containers, the files they create are still theirs
+                Path probe = Files.createTempFile(root, ".owner-", ".tmp");
+                try {
+                    return Files.getOwner(probe);
+                } finally {
+                    Files.deleteIfExists(probe);
+                }
+            }
+        }
+
+        /**
+         * Hashes the name, size and CRC of the nested jars, which are already known by the central directory,
+         * so the version is identified without reading the whole single jar.
+         */
+        private static String version(JarFile jarFile, String[] internalPaths) throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            for (String internalPath : internalPaths) {
+                JarEntry entry = requireEntry(jarFile, internalPath);
+                digest.update(internalPath.getBytes(StandardCharsets.UTF_8));
+                ((Buffer) buffer).clear();
+                ((Buffer) buffer.putLong(entry.getSize()).putLong(entry.getCrc())).flip();
+                digest.update(buffer);
+            }
+
+            StringBuilder version = new StringBuilder(32);
+            byte[] hash = digest.digest();
+            for (int i = 0; i < 16; i++) {
+                version.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+            }
+            return version.toString();
+        }
+
+        private static void lock(Path cache, String version) throws IOException {
+            try (FileChannel eviction = openLockFile(cache.resolve(EVICTION_LOCK));
+                 FileLock ignored = eviction.lock(0, Long.MAX_VALUE, true)) {
+                FileChannel channel = openLockFile(cache.resolve(version + LOCK_SUFFIX));
+                try {
+                    channel.lock(0, Long.MAX_VALUE, true);
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+                versionLock = channel;
+            }
+        }
+
+        private static FileChannel openLockFile(Path lockFile) throws IOException {
+            return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Checks that every extracted jar still has the size and CRC of the nested jar in the central directory
+         * of the single jar.
+         */
+        private static boolean isIntact(JarFile jarFile, String[] internalPaths, Path directory) throws IOException {
+            if (!Files.isDirectory(directory)) {
+                return false;
+            }
+            byte[] buffer = new byte[8192];
+            CRC32 crc = new CRC32();
+            for (String internalPath : internalPaths) {
+                JarEntry entry = requireEntry(jarFile, internalPath);
+                Path file = directory.resolve(fileName(internalPath));
+                crc.reset();
+                try {
+                    if (Files.size(file) != entry.getSize()) {
+                        return false;
+                    }
+                    try (InputStream is = Files.newInputStream(file)) {
+                        int read;
+                        while ((read = is.read(buffer)) >= 0) {
+                            crc.update(buffer, 0, read);
+                        }
+                    }
+                } catch (IOException e) {
+                    return false;
+                }
+                if (crc.getValue() != entry.getCrc()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static void publish(JarFile jarFile, String[] internalPaths, Path directory) throws IOException {
+            Path temporary = Files.createTempDirectory(directory.getParent(), directory.getFileName() + ".tmp-");
+            try {
+                for (String internalPath : internalPaths) {
+                    try (InputStream is = jarFile.getInputStream(requireEntry(jarFile, internalPath))) {
+                        Files.copy(is, temporary.resolve(fileName(internalPath)));
+                    }
+                }
+
+                try {
+                    Files.move(temporary, directory, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    // Another process has published the same version first
+                    if (!Files.isDirectory(directory)) {
+                        throw e;
+                    }
+                }
+            } finally {
+                if (Files.exists(temporary)) {
+                    deleteRecursively(temporary);
+                }
+            }
+        }
+
+        /**
+         * Renames the version to a temporary directory before deleting it, so a version that is not completely
+         * deleted is never found again.
+         */
+        private static void retire(Path directory) throws IOException {
+            Path retired = directory.resolveSibling(directory.getFileName() + RETIRED_INFIX + Long.toHexString(System.nanoTime()));
+            Files.move(directory, retired, StandardCopyOption.ATOMIC_MOVE);
+            deleteRecursively(retired);
+        }
+
+        /**
+         * Best effort, the other processes may be evicting the same directories at the same time, so nothing that
+         * fails here is allowed to fail the launch.
+         */
+        private static void evictStaleVersions(Path cache, String version) {
+            List<Path> others;
+            try (Stream<Path> children = Files.list(cache)) {
+                others = children.filter(it -> {
+                    String name = it.getFileName().toString();
+                    return !name.equals(version) && !name.equals(version + LOCK_SUFFIX);
+                }).collect(Collectors.toList());
+            } catch (IOException | UncheckedIOException ignored) {
+                return;
+            }
+
+            long staleTemporary = System.currentTimeMillis() - STALE_TEMPORARY_MILLIS;
+            for (Path other : others) {
+                String name = other.getFileName().toString();
+                if (!Files.isDirectory(other)) {
+                    continue;
+                }
+                if (name.contains(".tmp-")) {
+                    try {
+                        // Retired versions that were not completely deleted, or left behind by processes that
+                        // were killed while extracting
+                        if (name.contains(RETIRED_INFIX) || Files.getLastModifiedTime(other).toMillis() < staleTemporary) {
+                            deleteRecursively(other);
+                        }
+                    } catch (IOException | UncheckedIOException ignored) {
+                        // Deleted by another process, or will be tried again by the next launch
+                    }
+                    continue;
+                }
+
+                try (FileChannel channel = openLockFile(cache.resolve(name + LOCK_SUFFIX))) {
+                    FileLock lock = channel.tryLock();
+                    if (lock != null) {
+                        // The lock file is left to the eviction of the lock files below
+                        retire(other);
+                    }
+                } catch (IOException | UncheckedIOException | OverlappingFileLockException ignored) {
+                    // Still in use, not ours to delete, or being deleted by another process
+                }
+            }
+
+            evictLockFiles(cache, others);
+        }
+
+        /**
+         * Deletes the lock files of the versions that are gone and that nobody is holding.
+         */
+        private static void evictLockFiles(Path cache, List<Path> others) {
+            try (FileChannel eviction = openLockFile(cache.resolve(EVICTION_LOCK));
+                 FileLock evictionLock = eviction.tryLock()) {
+                if (evictionLock == null) {
+                    return;
+                }
+                for (Path other : others) {
+                    String name = other.getFileName().toString();
+                    if (!name.endsWith(LOCK_SUFFIX) || name.equals(EVICTION_LOCK)
+                            || Files.exists(cache.resolve(name.substring(0, name.length() - LOCK_SUFFIX.length())))) {
+                        continue;
+                    }
+                    try (FileChannel channel = openLockFile(other)) {
+                        FileLock lock = channel.tryLock();
+                        if (lock != null) {
+                            Files.deleteIfExists(other);
+                        }
+                    } catch (IOException | OverlappingFileLockException ignored) {
+                        // Still in use, it's deleted by a later launch
+                    }
+                }
+            } catch (IOException | OverlappingFileLockException ignored) {
+                // Another process is locking a version or evicting the lock files
+            }
+        }
+
+        private static JarEntry requireEntry(JarFile jarFile, String internalPath) throws IOException {
+            JarEntry entry = jarFile.getJarEntry(internalPath.substring(1));
+            if (entry == null) {
+                throw new FileNotFoundException("Resource not found: " + internalPath);
+            }
+            return entry;
+        }
+
+        private static String fileName(String internalPath) {
+            return internalPath.substring(internalPath.lastIndexOf('/') + 1);
+        }
+
+        private static void deleteRecursively(Path path) throws IOException {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(path)) {
+                files = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Inflated content of the resources of the entries that are inflated on demand, kept within a byte budget.
+     * It's split in segments with their own lock and their own share of the budget, each one drops its least
+     * recently used resources first.
+     */
+    static final class ResourceCache {
+        private static final int SEGMENTS = 16;
+
+        private final Segment[] segments = new Segment[SEGMENTS];
+        private final long maxEntrySize;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        ResourceCache(long maxSize) {
+            maxEntrySize = Math.max(maxSize / SEGMENTS, 1);
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments[i] = new Segment(maxEntrySize);
+            }
+        }
+
+        InputStream open(IndexedEntry entry) throws IOException {
+            // Stored entries are not inflated and the big ones would push everything else out
+            if (entry.method == ZipEntry.STORED || entry.size > maxEntrySize) {
+                return entry.open();
+            }
+
+            Segment segment = segments[(int) (NameFilter.mix(System.identityHashCode(entry)) >>> 60)];
+            byte[] content = segment.get(entry);
+            if (content != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+                ByteBuffer buffer = entry.read();
+                if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length) {
+                    content = buffer.array();
+                } else {
+                    content = new byte[buffer.remaining()];
+                    buffer.get(content);
+                }
+                evictions.add(segment.put(entry, content));
+            }
+            return new ByteArrayInputStream(content);
+        }
+
+        ResourceCacheStats stats() {
+            long bytes = 0;
+            for (Segment segment : segments) {
+                bytes += segment.bytes();
+            }
+            return new ResourceCacheStats(hits.sum(), misses.sum(), evictions.sum(), bytes);
+        }
+
+        static final class Segment {
+            private final LinkedHashMap<Entry, byte[]> contents = new LinkedHashMap<>(16, 0.75F, true);
+            private final long maxSize;
+            private long size;
+
+            Segment(long maxSize) {
+                this.maxSize = maxSize;
+            }
+
+            @Nullable
+            synchronized byte[] get(Entry entry) {
+                return contents.get(entry);
+            }
+
+            /**
+             * Adds the content and returns how many resources were dropped to make room for it.
+             */
+            synchronized int put(Entry entry, byte[] content) {
+                byte[] previous = contents.put(entry, content);
+                size += content.length - (previous != null? previous.length : 0);
+                int evicted = 0;
+                Iterator<byte[]> eldest = contents.values().iterator();
+                while (size > maxSize && eldest.hasNext()) {
+                    size -= eldest.next().length;
+                    eldest.remove();
+                    evicted++;
+                }
+                return evicted;
+            }
+
+            synchronized long bytes() {
+                return size;
+            }
+        }
+    }
+
+    /**
+     * Immutable Bloom filter of all the names known by the launcher, which answers most lookups of missing classes
+     * without allocating the internal name of the class. It has about 1% of false positives, which are still
+     * looked up normally.
+     */
+    static final class NameFilter {
+        private static final int BITS_PER_NAME = 10;
+        private static final int HASHES = 4;
+        private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+        private static final long FNV_PRIME = 0x100000001b3L;
+        private static final String CLASS_SUFFIX = ".class";
+
+        private final long[] bits;
+        private final int mask;
+
+        NameFilter(Collection<String> names) {
+            int size = Integer.highestOneBit(Math.max(64, Math.min(names.size(), 1 << 26) * BITS_PER_NAME - 1)) << 1;
+            bits = new long[size >>> 6];
+            mask = size - 1;
+            for (String name : names) {
+                long hash = FNV_OFFSET;
+                for (int i = 0; i < name.length(); i++) {
+                    hash = (hash ^ name.charAt(i)) * FNV_PRIME;
+                }
+                add(mix(hash));
+            }
+        }
+
+        /**
+         * Hashes {@code binaryName.replace('.', '/') + ".class"} without creating it.
+         */
+        boolean mightContainClass(String binaryName) {
+            long hash = FNV_OFFSET;
+            for (int i = 0; i < binaryName.length(); i++) {
+                char c = binaryName.charAt(i);
+                hash = (hash ^ (c == '.'? '/' : c)) * FNV_PRIME;
+            }
+            for (int i = 0; i < CLASS_SUFFIX.length(); i++) {
+                hash = (hash ^ CLASS_SUFFIX.charAt(i)) * FNV_PRIME;
+            }
+            return mightContain(mix(hash));
+        }
+
+        private void add(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (h1 + i * h2) & mask;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        private boolean mightContain(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (h1 + i * h2) & mask;
+                if ((bits[bit >>> 6] & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Spreads the FNV-1a bits, which are weak in the high half for short names.
+         */
+        private static long mix(long hash) {
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+
+    /**
+     * Startup and class loading metrics of a launcher, exposed through JMX.
+     */
+    public interface MetricsMXBean {
+        /**
+         * The launcher mode.
+         */
+        String getMode();
+
+        /**
+         * How long the constructor took, in nanoseconds.
+         */
+        long getStartupNanos();
+
+        /**
+         * How long each nested jar took to be preloaded or indexed, in nanoseconds.
+         */
+        Map<String, Long> getNestedJarNanos();
+
+        /**
+         * The size of all entries that were inflated, at startup or on demand.
+         */
+        long getBytesInflated();
+
+        /**
+         * How many classes were defined by the launcher.
+         */
+        long getFindClassCount();
+
+        /**
+         * How long all the classes took to be found and defined, in nanoseconds.
+         */
+        long getFindClassNanos();
+
+        /**
+         * How many class and resource names were looked up.
+         */
+        long getLookupCount();
+
+        /**
+         * How many looked up names were not found in any nested jar.
+         */
+        long getNegativeLookupCount();
+
+        /**
+         * The classes that took the longest to be found and defined, with their times.
+         */
+        String[] getSlowestClasses();
+
+        /**
+         * How many bytes of class files were dropped, see {@link #RELEASE_CLASS_BYTES_PROPERTY}.
+         */
+        long getReleasedClassBytes();
+
+        /**
+         * How many missing classes were rejected by the name filter, without being looked up.
+         */
+        long getFilteredClassLookups();
+
+        /**
+         * How many resource reads were served by the resource cache, see {@link #RESOURCE_CACHE_SIZE_PROPERTY}.
+         */
+        long getResourceCacheHits();
+
+        /**
+         * How many resource reads had to inflate a resource that could be cached.
+         */
+        long getResourceCacheMisses();
+
+        /**
+         * How many resources were dropped from the resource cache to keep it within its size.
+         */
+        long getResourceCacheEvictions();
+
+        /**
+         * How many bytes of inflated resources are in the resource cache.
+         */
+        long getResourceCacheBytes();
+    }
+
+    /**
+     * A snapshot of the counters of the resource cache.
+     */
+    public static final class ResourceCacheStats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long bytes;
+
+        ResourceCacheStats(long hits, long misses, long evictions, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + ", bytes: " + bytes;
+        }
+    }
+
+    static final class Metrics implements MetricsMXBean {
+        private static final int SLOWEST_CLASSES = 10;
+        private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+        private final String mode;
+        private final SingleJarLauncher launcher;
+        private final Map<String, Long> nestedJarNanos = new ConcurrentHashMap<>();
+        private final LongAdder bytesInflated = new LongAdder();
+        private final LongAdder findClassCount = new LongAdder();
+        private final LongAdder findClassNanos = new LongAdder();
+        private final LongAdder lookupCount = new LongAdder();
+        private final LongAdder negativeLookupCount = new LongAdder();
+        private final String[] slowestNames = new String[SLOWEST_CLASSES];
+        private final long[] slowestNanos = new long[SLOWEST_CLASSES];
+        private volatile long slowestThreshold;
+        private volatile long startupNanos;
+        private volatile int nestedJarCount;
+        private final @Nullable JfrEvents jfr;
+
+        Metrics(String mode, SingleJarLauncher launcher) {
+            this.mode = mode;
+            this.launcher = launcher;
+            jfr = JfrEvents.isAvailable()? JfrEvents.INSTANCE : null;
+        }
+
+        void nestedJarRead(String internalPath, boolean indexed, int entries, long start) {
+            long nanos = System.nanoTime() - start;
+            nestedJarNanos.put(internalPath, nanos);
+            if (jfr != null) {
+                jfr.nestedJarRead(internalPath, indexed, entries, nanos);
+            }
+        }
+
+        void constructed(int nestedJarCount, long start) {
+            this.nestedJarCount = nestedJarCount;
+            this.startupNanos = System.nanoTime() - start;
+        }
+
+        void inflated(long bytes) {
+            bytesInflated.add(bytes);
+        }
+
+        void lookup(boolean found) {
+            lookupCount.increment();
+            if (!found) {
+                negativeLookupCount.increment();
+            }
+        }
+
+        void classDefined(String name, long start) {
+            long nanos = System.nanoTime() - start;
+            findClassCount.increment();
+            findClassNanos.add(nanos);
+            if (nanos > slowestThreshold) {
+                recordSlowClass(name, nanos);
+            }
+            if (jfr != null) {
+                jfr.classDefined(name, nanos);
+            }
+        }
+
+        private synchronized void recordSlowClass(String name, long nanos) {
+            int index = SLOWEST_CLASSES - 1;
+            if (nanos <= slowestNanos[index]) {
+                return;
+            }
+            while (index > 0 && nanos > slowestNanos[index - 1]) {
+                slowestNanos[index] = slowestNanos[index - 1];
+                slowestNames[index] = slowestNames[index - 1];
+                index--;
+            }
+            slowestNanos[index] = nanos;
+            slowestNames[index] = name;
+            slowestThreshold = slowestNanos[SLOWEST_CLASSES - 1];
+        }
+
+        /**
+         * Registers the metrics with an id of their own, so the launchers created in the same JVM never replace
+         * each other.
+         */
+        void register() {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(
+                        "org.powernukkit.singlejar:type=SingleJarLauncher,mode=" + mode + ",id=" + INSTANCES.incrementAndGet()));
+            } catch (JMException | SecurityException e) {
+                // JMX is not allowed, the summary still works
+            }
+        }
+
+        @Override
+        public String getMode() {
+            return mode;
+        }
+
+        @Override
+        public long getStartupNanos() {
+            return startupNanos;
+        }
+
+        @Override
+        public Map<String, Long> getNestedJarNanos() {
+            return new TreeMap<>(nestedJarNanos);
+        }
+
+        @Override
+        public long getBytesInflated() {
+            return bytesInflated.sum();
+        }
+
+        @Override
+        public long getFindClassCount() {
+            return findClassCount.sum();
+        }
+
+        @Override
+        public long getFindClassNanos() {
+            return findClassNanos.sum();
+        }
+
+        @Override
+        public long getLookupCount() {
+            return lookupCount.sum();
+        }
+
+        @Override
+        public long getNegativeLookupCount() {
+            return negativeLookupCount.sum();
+        }
+
+        @Override
+        public synchronized String[] getSlowestClasses() {
+            List<String> slowest = new ArrayList<>(SLOWEST_CLASSES);
+            for (int i = 0; i < SLOWEST_CLASSES && slowestNames[i] != null; i++) {
+                slowest.add(slowestNames[i] + " " + millis(slowestNanos[i]));
+            }
+            return slowest.toArray(new String[0]);
+        }
+
+        @Override
+        public long getReleasedClassBytes() {
+            return launcher.getReleasedClassBytes();
+        }
+
+        @Override
+        public long getFilteredClassLookups() {
+            return launcher.getFilteredClassLookups();
+        }
+
+        @Override
+        public long getResourceCacheHits() {
+            ResourceCacheStats stats = launcher.getResourceCacheStats();
+            return stats != null? stats.hits : 0;
+        }
+
+        @Override
+        public long getResourceCacheMisses() {
+            ResourceCacheStats stats = launcher.getResourceCacheStats();
+            return stats != null? stats.misses : 0;
+        }
+
+        @Override
+        public long getResourceCacheEvictions() {
+            ResourceCacheStats stats = launcher.getResourceCacheStats();
+            return stats != null? stats.evictions : 0;
+        }
+
+        @Override
+        public long getResourceCacheBytes() {
+            ResourceCacheStats stats = launcher.getResourceCacheStats();
+            return stats != null? stats.bytes : 0;
+        }
+
+        String summary() {
+            long lookups = getLookupCount();
+            long negativeLookups = getNegativeLookupCount();
+            StringBuilder summary = new StringBuilder(1024)
+                    .append("SingleJarLauncher metrics, mode ").append(mode).append('\n')
+                    .append("  startup: ").append(millis(startupNanos)).append(" for ").append(nestedJarCount).append(" nested jars\n")
+                    .append("  bytes inflated: ").append(getBytesInflated()).append('\n')
+                    .append("  classes defined: ").append(getFindClassCount()).append(" in ").append(millis(getFindClassNanos())).append('\n')
+                    .append("  lookups: ").append(lookups).append(", not found: ").append(negativeLookups)
+                    .append(String.format(" (%.1f%%)", lookups == 0? 0.0 : negativeLookups * 100.0 / lookups))
+                    .append(", rejected by the name filter: ").append(getFilteredClassLookups()).append('\n')
+                    .append("  released class bytes: ").append(getReleasedClassBytes()).append('\n');
+            ResourceCacheStats resourceCacheStats = launcher.getResourceCacheStats();
+            if (resourceCacheStats != null) {
+                summary.append("  resource cache: ").append(resourceCacheStats).append('\n');
+            }
+
+            summary.append("  slowest nested jars:\n");
+            nestedJarNanos.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .limit(SLOWEST_CLASSES)
+                    .forEach(it -> summary.append("    ").append(it.getKey()).append(' ').append(millis(it.getValue())).append('\n'));
+
+            summary.append("  slowest classes:\n");
+            for (String slowest : getSlowestClasses()) {
+                summary.append("    ").append(slowest).append('\n');
+            }
+            return summary.toString();
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.3f ms", nanos / 1_000_000.0);
+        }
+    }
+
+    /**
+     * The JFR events of the {@link Metrics}, only loaded when they are enabled and the JVM has JFR.
+     * <p>
+     * The event types are created by the {@code jdk.jfr.EventFactory} through reflection, so the launcher is still
+     * compiled for Java 8 and loaded by the Java 8 runtimes that don't have JFR.
+     */
+    static final class JfrEvents {
+        static final JfrEvents INSTANCE = new JfrEvents();
+
+        private final Method isEnabled;
+        private final Method set;
+        private final Method commit;
+        private final @Nullable Object nestedJarRead;
+        private final @Nullable Object classDefined;
+        private final @Nullable Method newEvent;
+
+        private JfrEvents() {
+            Method isEnabled = null;
+            Method set = null;
+            Method commit = null;
+            Object nestedJarRead = null;
+            Object classDefined = null;
+            Method newEvent = null;
+            try {
+                Class<?> eventClass = Class.forName("jdk.jfr.Event");
+                Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+                isEnabled = eventClass.getMethod("isEnabled");
+                set = eventClass.getMethod("set", int.class, Object.class);
+                commit = eventClass.getMethod("commit");
+                newEvent = factoryClass.getMethod("newEvent");
+                Method create = factoryClass.getMethod("create", List.class, List.class);
+                nestedJarRead = create.invoke(null,
+                        eventAnnotations("org.powernukkit.singlejar.NestedJarRead", "Nested Jar Read",
+                                "A nested jar was preloaded or indexed by the launcher"),
+                        Arrays.asList(
+                                field(String.class, "path", "Path", false),
+                                field(boolean.class, "indexed", "Indexed", false),
+                                field(int.class, "entries", "Entries", false),
+                                field(long.class, "time", "Time", true)
+                        )
+                );
+                classDefined = create.invoke(null,
+                        eventAnnotations("org.powernukkit.singlejar.ClassDefined", "Class Defined",
+                                "A class was found in a nested jar and defined by the launcher"),
+                        Arrays.asList(
+                                field(String.class, "className", "Class Name", false),
+                                field(long.class, "time", "Time", true)
+                        )
+                );
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                newEvent = null;
+            }
+            this.isEnabled = isEnabled;
+            this.set = set;
+            this.commit = commit;
+            this.nestedJarRead = nestedJarRead;
+            this.classDefined = classDefined;
+            this.newEvent = newEvent;
+        }
+
+        /**
+         * Checks for JFR without loading any of its classes, the Java 8 runtimes before 8u262 don't have it.
+         */
+        static boolean isAvailable() {
+            try {
+                Class.forName("jdk.jfr.FlightRecorder", false, ClassLoader.getSystemClassLoader());
+            } catch (ClassNotFoundException | LinkageError e) {
+                return false;
+            }
+            return INSTANCE.newEvent != null;
+        }
+
+        void nestedJarRead(String path, boolean indexed, int entries, long nanos) {
+            emit(nestedJarRead, path, indexed, entries, nanos);
+        }
+
+        void classDefined(String className, long nanos) {
+            emit(classDefined, className, nanos);
+        }
+
+        private void emit(@Nullable Object factory, Object... values) {
+            if (factory == null || newEvent == null) {
+                return;
+            }
+            try {
+                Object event = newEvent.invoke(factory);
+                if (!(Boolean) isEnabled.invoke(event)) {
+                    return;
+                }
+                for (int i = 0; i < values.length; i++) {
+                    set.invoke(event, i, values[i]);
+                }
+                commit.invoke(event);
+            } catch (ReflectiveOperationException e) {
+                // The metrics must never break the application
+            }
+        }
+
+        private static List<Object> eventAnnotations(String name, String label, String description)
+                throws ReflectiveOperationException {
+            return Arrays.asList(
+                    annotation("jdk.jfr.Name", name),
+                    annotation("jdk.jfr.Label", label),
+                    annotation("jdk.jfr.Category", new String[]{"Single Jar Launcher"}),
+                    annotation("jdk.jfr.Description", description)
+            );
+        }
+
+        private static Object field(Class<?> type, String name, String label, boolean nanoseconds)
+                throws ReflectiveOperationException {
+            List<Object> annotations = new ArrayList<>(2);
+            annotations.add(annotation("jdk.jfr.Label", label));
+            if (nanoseconds) {
+                annotations.add(annotation("jdk.jfr.Timespan", "NANOSECONDS"));
+            }
+            Constructor<?> constructor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+            return constructor.newInstance(type, name, annotations);
+        }
+
+        private static Object annotation(String annotationType, Object value) throws ReflectiveOperationException {
+            Constructor<?> constructor = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+            return constructor.newInstance(Class.forName(annotationType), value);
+        }
+    }
+
+    /**
+     * Offsets and signatures of the ZIP format that are needed to read the nested jars directly.
+     */
+    static final class Zip {
+        static final int LOCAL_SIGNATURE = 0x04034b50;
+        static final int CENTRAL_SIGNATURE = 0x02014b50;
+        static final int END_SIGNATURE = 0x06054b50;
+        static final int LOCAL_HEADER_SIZE = 30;
+        static final int CENTRAL_HEADER_SIZE = 46;
+        static final int END_HEADER_SIZE = 22;
+
+        private Zip() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A jar stored inside the {@code META-INF/lib} folder of the single jar application.
+     */
+    static final class NestedJar {
+        final String path;
+        final URL url;
+        private volatile ByteBuffer data;
+
+        /**
+         * Set right after the nested jar is created, when the metrics are enabled.
+         */
+        @Nullable
+        Metrics metrics;
+
+        NestedJar(String path, ByteBuffer data) {
+            this.path = path;
+            this.url = null;
+            this.data = data.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        NestedJar(String path, URL url) {
+            this.path = path;
+            this.url = url;
+        }
+
+        /**
+         * The full content of the nested jar, which is only read when it is needed for the first time.
+         */
+        ByteBuffer data() throws IOException {
+            ByteBuffer current = data;
+            if (current != null) {
+                return current;
+            }
+            synchronized (this) {
+                if (data == null) {
+                    URLConnection connection = url.openConnection();
+                    try (InputStream is = connection.getInputStream()) {
+                        data = ByteBuffer.wrap(readFully(is, connection.getContentLengthLong())).order(ByteOrder.LITTLE_ENDIAN);
+                    }
+                }
+                return data;
+            }
+        }
+    }
+
+    /**
+     * Everything that was found in a nested jar, in the order it was found.
+     */
+    static final class NestedJarContents {
+        final List<String> names = new ArrayList<>();
+        final List<Entry> entries = new ArrayList<>();
+
+        /**
+         * Only known when the nested jar is preloaded, which verifies its signatures.
+         */
+        @Nullable
+        CodeSigner[] signers;
+
+        /**
+         * Only known when the nested jar is indexed by the file generated at build time, otherwise it's read from
+         * the manifest when the jar has versioned files.
+         */
+        @Nullable
+        Boolean multiRelease;
+
+        void add(String name, Entry entry) {
+            names.add(name);
+            entries.add(entry);
+        }
+
+        void clear() {
+            names.clear();
+            entries.clear();
+            signers = null;
+            multiRelease = null;
+        }
+    }
+
+    /**
+     * A file that was found in one of the nested jars.
+     */
+    abstract static class Entry {
+        /**
+         * The index of the nested jar that has this entry, set when the nested jars are merged.
+         */
+        int jar;
+
+        /**
+         * The full uncompressed content of the file.
+         */
+        abstract ByteBuffer read() throws IOException;
+
+        /**
+         * The uncompressed size, or {@code -1} if it's unknown.
+         */
+        abstract long size();
+
+        /**
+         * Drops the content kept in memory, if any, returning how many bytes were dropped.
+         */
+        int release() {
+            return 0;
+        }
+
+        /**
+         * Gets the content ready ahead of the first read, if it's not already in memory.
+         */
+        void prefetch() throws IOException {
+        }
+
+        InputStream open() throws IOException {
+            ByteBuffer buffer = read();
+            if (!buffer.hasArray()) {
+                return new ByteBufferInputStream(buffer);
+            }
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+    }
+
+    /**
+     * An entry which was fully inflated when the nested jar was preloaded.
+     */
+    static final class LoadedEntry extends Entry {
+        private final String internalPath;
+        private final String name;
+        private volatile byte[] data;
+
+        LoadedEntry(String internalPath, String name, byte[] data) {
+            this.internalPath = internalPath;
+            this.name = name;
+            this.data = data;
+        }
+
+        @Override
+        ByteBuffer read() throws IOException {
+            byte[] current = data;
+            if (current == null) {
+                current = reload();
+            }
+            return ByteBuffer.wrap(current);
+        }
+
+        @Override
+        long size() {
+            byte[] current = data;
+            return current != null? current.length : -1;
+        }
+
+        @Override
+        int release() {
+            byte[] current = data;
+            data = null;
+            return current != null? current.length : 0;
+        }
+
+        private byte[] reload() throws IOException {
+            if (SINGLE_JAR.equals(internalPath)) {
+                // The launcher class is always loaded from the single jar
+                try (InputStream is = SingleJarLauncher.class.getResourceAsStream("/" + name)) {
+                    if (is != null) {
+                        return readFully(is, -1);
+                    }
+                }
+                throw new FileNotFoundException("Entry not found in the single jar: " + name);
+            }
+            try (InputStream is = Objects.requireNonNull(SingleJarLauncher.class.getResourceAsStream(internalPath), "Resource not found: " + internalPath);
+                 JarInputStream input = new JarInputStream(is)) {
+                JarEntry entry;
+                while ((entry = input.getNextJarEntry()) != null) {
+                    if (name.equals(entry.getName())) {
+                        return readFully(input, entry.getSize());
+                    }
+                }
+            }
+            throw new FileNotFoundException("Entry not found: " + internalPath + "!/" + name);
+        }
+    }
+
+    /**
+     * Packs the preloaded entries in large direct buffers, so they don't stay in the heap for the whole life
+     * of the application. Shared by all the nested jars, which may be preloaded at the same time.
+     */
+    static final class OffHeapArena {
+        static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+        /**
+         * Entries bigger than this get a buffer of their own, so little space is lost at the end of the chunks.
+         */
+        static final int MAX_PACKED_SIZE = CHUNK_SIZE / 16;
+
+        private ByteBuffer chunk;
+
+        synchronized ArenaEntry store(byte[] data) {
+            if (data.length > MAX_PACKED_SIZE) {
+                ByteBuffer own = ByteBuffer.allocateDirect(data.length);
+                own.put(data);
+                return new ArenaEntry(own, 0, data.length);
+            }
+
+            if (chunk == null || chunk.remaining() < data.length) {
+                chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            }
+            int offset = chunk.position();
+            chunk.put(data);
+            return new ArenaEntry(chunk, offset, data.length);
+        }
+    }
+
+    /**
+     * An entry which was fully inflated when the nested jar was preloaded and is kept in an {@link OffHeapArena}.
+     */
+    static final class ArenaEntry extends Entry {
+        private final ByteBuffer chunk;
+        private final int offset;
+        private final int length;
+
+        ArenaEntry(ByteBuffer chunk, int offset, int length) {
+            this.chunk = chunk;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        long size() {
+            return length;
+        }
+
+        @Override
+        ByteBuffer read() {
+            ByteBuffer buffer = chunk.duplicate();
+            ((Buffer) buffer).limit(offset + length).position(offset);
+            return buffer.slice();
+        }
+    }
+
+    /**
+     * An entry that only knows where it is located in the nested jar and is inflated every time it's read.
+     */
+    static final class IndexedEntry extends Entry {
+        final NestedJar jar;
+        final int localHeaderOffset;
+        final int method;
+        final int compressedSize;
+        final int size;
+        final int crc;
+
+        /**
+         * Inflated ahead by {@link #prefetch()}, only kept until the first read, so it doesn't stay in memory.
+         */
+        @Nullable
+        private volatile ByteBuffer prefetched;
+        private static final AtomicReferenceFieldUpdater<IndexedEntry, ByteBuffer> PREFETCHED =
+                AtomicReferenceFieldUpdater.newUpdater(IndexedEntry.class, ByteBuffer.class, "prefetched");
+
+        IndexedEntry(NestedJar jar, int localHeaderOffset, int method, int compressedSize, int size, int crc) {
+            this.jar = jar;
+            this.localHeaderOffset = localHeaderOffset;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        @Override
+        ByteBuffer read() throws IOException {
+            if (prefetched != null) {
+                // Only one of the readers that raced for it gets the prefetched bytes, the others inflate it again
+                ByteBuffer ready = PREFETCHED.getAndSet(this, null);
+                if (ready != null) {
+                    return ready;
+                }
+            }
+
+            ByteBuffer result;
+            if (method == ZipEntry.STORED) {
+                result = slice();
+            } else if (method == ZipEntry.DEFLATED) {
+                result = ByteBuffer.wrap(inflate(jar.data(), dataStart()));
+                if (jar.metrics != null) {
+                    jar.metrics.inflated(size);
+                }
+            } else {
+                throw new ZipException("Unsupported compression method " + method + " in " + jar.path);
+            }
+
+            // Also protects against an index that doesn't match the nested jar
+            CRC32 checksum = new CRC32();
+            checksum.update(result.duplicate());
+            if ((int) checksum.getValue() != crc) {
+                throw new ZipException("CRC mismatch at " + localHeaderOffset + " in " + jar.path);
+            }
+            return result;
+        }
+
+        @Override
+        long size() {
+            return size;
+        }
+
+        @Override
+        void prefetch() throws IOException {
+            if (method != ZipEntry.STORED && prefetched == null) {
+                PREFETCHED.compareAndSet(this, null, read());
+            }
+        }
+
+        /**
+         * Streams the entry as it's inflated, without verifying it, instead of inflating it fully first.
+         */
+        @Override
+        InputStream open() throws IOException {
+            if (prefetched != null) {
+                return super.open();
+            }
+            if (method == ZipEntry.STORED) {
+                return new ByteBufferInputStream(slice());
+            } else if (method != ZipEntry.DEFLATED) {
+                throw new ZipException("Unsupported compression method " + method + " in " + jar.path);
+            }
+
+            int start = dataStart();
+            ByteBuffer compressed = jar.data().duplicate();
+            ((Buffer) compressed).limit(start + compressedSize).position(start);
+            if (jar.metrics != null) {
+                jar.metrics.inflated(size);
+            }
+            return new InflatingInputStream(new ByteBufferInputStream(compressed.slice()), size);
+        }
+
+        /**
+         * The data of an entry stored without compression, as it is in the nested jar and without verifying it.
+         */
+        ByteBuffer slice() throws IOException {
+            int start = dataStart();
+            ByteBuffer slice = jar.data().duplicate();
+            ((Buffer) slice).limit(start + size).position(start);
+            return slice.slice();
+        }
+
+        private int dataStart() throws IOException {
+            ByteBuffer data = jar.data();
+            int pos = localHeaderOffset;
+            if (data.getInt(pos) != Zip.LOCAL_SIGNATURE) {
+                throw new ZipException("Invalid local header at " + pos + " in " + jar.path);
+            }
+            return pos + Zip.LOCAL_HEADER_SIZE + (data.getShort(pos + 26) & 0xFFFF) + (data.getShort(pos + 28) & 0xFFFF);
+        }
+
+        private byte[] inflate(ByteBuffer data, int start) throws IOException {
+            byte[] output = new byte[size];
+            Inflater inflater = new Inflater(true);
+            try {
+                if (data.hasArray()) {
+                    inflater.setInput(data.array(), data.arrayOffset() + start, compressedSize);
+                } else {
+                    byte[] input = new byte[compressedSize];
+                    ByteBuffer compressed = data.duplicate();
+                    ((Buffer) compressed).position(start);
+                    compressed.get(input);
+                    inflater.setInput(input);
+                }
+                int length = 0;
+                while (length < size) {
+                    int inflated = inflater.inflate(output, length, size - length);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += inflated;
+                }
+                if (length != size) {
+                    throw new ZipException("Truncated entry at " + localHeaderOffset + " in " + jar.path);
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Corrupted entry at " + localHeaderOffset + " in " + jar.path + ": " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+            return output;
+        }
+    }
+
+    /**
+     * Inflates a raw deflated entry, releasing the native memory of the inflater when closed.
+     */
+    static final class InflatingInputStream extends InflaterInputStream {
+        private boolean eof;
+        private boolean closed;
+
+        InflatingInputStream(InputStream compressed, int size) {
+            super(compressed, new Inflater(true), Math.max(512, Math.min(size, 8192)));
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of the compressed entry");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                // The inflater may need an extra byte after the raw data, like ZipFile does
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                super.close();
+                inf.end();
+            }
+        }
+    }
+
+    /**
+     * Reads a buffer that doesn't have an array, like the memory mapped ones, without copying it.
+     */
+    static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining()? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            ((Buffer) buffer).position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
         }
     }
 }
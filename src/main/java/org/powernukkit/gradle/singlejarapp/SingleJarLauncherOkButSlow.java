@@ -57,7 +57,7 @@ public class SingleJarLauncherOkButSlow extends SecureClassLoader {
             }
         }
         long stop = System.nanoTime();
-        System.out.println("Preloading took " + Duration.ofNanos(start - stop));
+        System.out.println("Preloading took " + Duration.ofNanos(stop - start));
     }
 
     private String[] updateKnownObject(String key, String[] current) {
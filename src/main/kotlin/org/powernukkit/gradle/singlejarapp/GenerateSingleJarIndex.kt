@@ -0,0 +1,55 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp
+
+import org.gradle.api.DefaultTask
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+
+/**
+ * Writes the index of the bundled jars to [SingleJarLauncher.INDEX_RESOURCE] and their merged service files to
+ * [SingleJarLauncher.SERVICES_RESOURCE], so the launcher don't need to scan them when it starts.
+ *
+ * @author joserobjr
+ * @since 2021-08-15
+ */
+@CacheableTask
+abstract class GenerateSingleJarIndex : DefaultTask() {
+    /**
+     * The jars that are bundled in `META-INF/lib`, they are found there by their file names.
+     */
+    @get:InputFiles
+    @get:PathSensitive(PathSensitivity.NAME_ONLY)
+    abstract val libraries: ConfigurableFileCollection
+
+    @get:OutputDirectory
+    abstract val outputDirectory: DirectoryProperty
+
+    @TaskAction
+    fun generate() {
+        val outputDir = outputDirectory.get().asFile
+        outputDir.deleteRecursively()
+        writeSingleJarIndex(libraries, outputDir.resolve(SingleJarLauncher.INDEX_RESOURCE), logger)
+        writeSingleJarServices(libraries, outputDir.resolve(SingleJarLauncher.SERVICES_RESOURCE), logger)
+    }
+}
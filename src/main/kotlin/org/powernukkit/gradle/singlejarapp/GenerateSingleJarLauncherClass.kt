@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp
+
+import org.gradle.api.DefaultTask
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.TaskAction
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.commons.ClassRemapper
+import org.objectweb.asm.commons.SimpleRemapper
+
+/**
+ * Copies the launcher class and all its inner classes to the output directory, renamed to be inner classes
+ * of the application main class.
+ *
+ * @author joserobjr
+ * @since 2021-08-16
+ */
+@CacheableTask
+abstract class GenerateSingleJarLauncherClass : DefaultTask() {
+    /**
+     * The application main class, the launcher becomes its `$SingleJarLauncher` inner class.
+     */
+    @get:Input
+    abstract val mainClassName: Property<String>
+
+    /**
+     * The launcher class that is copied, with its inner classes.
+     */
+    @get:Input
+    abstract val launcherClassName: Property<String>
+
+    @get:OutputDirectory
+    abstract val outputDirectory: DirectoryProperty
+
+    @TaskAction
+    fun generate() {
+        val fromInternalName = launcherClassName.get().replace('.', '/')
+        val finalInternalName = mainClassName.get().replace('.', '/') + "\$SingleJarLauncher"
+        val launcherClasses = findLauncherClasses(fromInternalName)
+        val mappings = launcherClasses.keys.associateWith { finalInternalName + it.substring(fromInternalName.length) }
+
+        val outputDir = outputDirectory.get().asFile
+        outputDir.deleteRecursively()
+        val packageDir = outputDir.resolve(finalInternalName.substringBeforeLast('/', ""))
+        check(packageDir.isDirectory || packageDir.mkdirs()) { "Could not create the directory $packageDir" }
+
+        launcherClasses.entries.parallelStream().forEach { (internalName, bytes) ->
+            val writer = ClassWriter(0)
+            ClassReader(bytes).accept(ClassRemapper(writer, SimpleRemapper(mappings)), 0)
+            packageDir.resolve(mappings.getValue(internalName).substringAfterLast('/') + ".class").writeBytes(writer.toByteArray())
+        }
+    }
+
+    /**
+     * The launcher class and all the inner classes found in the `InnerClasses` attributes, recursively.
+     */
+    private fun findLauncherClasses(rootInternalName: String): Map<String, ByteArray> {
+        val classes = LinkedHashMap<String, ByteArray>()
+        val pending = ArrayDeque<String>()
+        pending += rootInternalName
+        while (pending.isNotEmpty()) {
+            val internalName = pending.removeFirst()
+            if (internalName in classes) {
+                continue
+            }
+            val bytes = readClass(internalName)
+            classes[internalName] = bytes
+            ClassReader(bytes).accept(object : ClassVisitor(Opcodes.ASM9) {
+                override fun visitInnerClass(name: String, outerName: String?, innerName: String?, access: Int) {
+                    if (name.startsWith("$rootInternalName\$") && name !in classes) {
+                        pending += name
+                    }
+                }
+            }, ClassReader.SKIP_CODE or ClassReader.SKIP_DEBUG or ClassReader.SKIP_FRAMES)
+        }
+        return classes
+    }
+
+    private fun readClass(internalName: String): ByteArray {
+        val url = checkNotNull(SingleJarLauncher::class.java.classLoader.getResource("$internalName.class")) {
+            "Resource not found: $internalName.class"
+        }
+        return url.readBytes()
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp
+
+import org.gradle.api.DefaultTask
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+import java.io.File
+import java.util.jar.Attributes
+import java.util.jar.JarFile
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+
+/**
+ * Turns a single jar back into a flat classpath for tools that can't use the launcher, like `native-image`.
+ *
+ * The output directory gets:
+ * - `lib/`: the bundled jars, as they are, and `application.jar` with the classes and resources of the application,
+ *   without the launcher;
+ * - `reflect-config.json` and `resource-config.json`: the classes and resources of the startup profile bundled in the
+ *   single jar, if it has one;
+ * - [ARGUMENTS_FILE]: the `native-image` options, one per line, relative to the output directory;
+ * - [MAIN_CLASS_FILE]: the application main class, which is given to `native-image` after all the options.
+ *
+ * @author joserobjr
+ * @since 2021-08-17
+ */
+@CacheableTask
+abstract class GenerateSingleJarNativeImageInputs : DefaultTask() {
+    companion object {
+        const val ARGUMENTS_FILE = "native-image.args"
+        const val MAIN_CLASS_FILE = "native-image.main"
+        const val APPLICATION_JAR = "lib/application.jar"
+        private const val LAUNCHER_SUFFIX = "\$SingleJarLauncher"
+    }
+
+    @get:InputFile
+    @get:PathSensitive(PathSensitivity.NONE)
+    abstract val singleJar: RegularFileProperty
+
+    @get:OutputDirectory
+    abstract val outputDirectory: DirectoryProperty
+
+    @TaskAction
+    fun generate() {
+        val outputDir = outputDirectory.get().asFile
+        outputDir.deleteRecursively()
+        val libDir = outputDir.resolve("lib")
+        check(libDir.mkdirs()) { "Could not create the directory $libDir" }
+
+        JarFile(singleJar.get().asFile, false).use { jar ->
+            val launcherClass = checkNotNull(jar.manifest?.mainAttributes?.getValue(Attributes.Name.MAIN_CLASS)) {
+                "The single jar doesn't have a Main-Class"
+            }
+            check(launcherClass.endsWith(LAUNCHER_SUFFIX)) { "The single jar Main-Class is not a launcher: $launcherClass" }
+            val mainClass = launcherClass.removeSuffix(LAUNCHER_SUFFIX)
+            val launcherPrefix = launcherClass.replace('.', '/')
+
+            val classpath = mutableListOf(APPLICATION_JAR)
+            for (entry in jar.entries()) {
+                if (!entry.isDirectory && isNestedJar(entry.name)) {
+                    val target = "lib/" + entry.name.substringAfterLast('/')
+                    jar.getInputStream(entry).use { input -> outputDir.resolve(target).outputStream().use { input.copyTo(it) } }
+                    classpath += target
+                }
+            }
+
+            writeApplicationJar(jar, outputDir.resolve(APPLICATION_JAR), mainClass, classpath.drop(1)) { name ->
+                !name.startsWith("META-INF/lib/") && !name.startsWith("META-INF/singlejar.") && !name.startsWith(launcherPrefix)
+            }
+
+            val profile = jar.getJarEntry(SingleJarLauncher.PROFILE_RESOURCE)?.let { entry ->
+                jar.getInputStream(entry).bufferedReader().useLines { lines ->
+                    lines.map { it.trim() }.filter { it.isNotEmpty() && !it.startsWith("#") }.toList()
+                }
+            } ?: emptyList()
+            writeConfiguration(outputDir, profile)
+
+            outputDir.resolve(ARGUMENTS_FILE).writeText(listOf(
+                "-cp",
+                classpath.joinToString(File.pathSeparator),
+                "-H:ConfigurationFileDirectories=.",
+            ).joinToString("\n", postfix = "\n"))
+            outputDir.resolve(MAIN_CLASS_FILE).writeText(mainClass + "\n")
+        }
+    }
+
+    private fun writeApplicationJar(jar: JarFile, target: File, mainClass: String, libraries: List<String>, filter: (String) -> Boolean) {
+        val manifest = Manifest(jar.manifest)
+        with(manifest.mainAttributes) {
+            put(Attributes.Name.MAIN_CLASS, mainClass)
+            if (libraries.isNotEmpty()) {
+                put(Attributes.Name.CLASS_PATH, libraries.joinToString(" ") { it.removePrefix("lib/") })
+            }
+            remove(Attributes.Name(SingleJarLauncher.MODE_ATTRIBUTE))
+            remove(Attributes.Name(SingleJarLauncher.SINGLE_LOADER_ATTRIBUTE))
+        }
+
+        JarOutputStream(target.outputStream().buffered(), manifest).use { output ->
+            for (entry in jar.entries()) {
+                if (entry.isDirectory || entry.name == JarFile.MANIFEST_NAME || !filter(entry.name)) {
+                    continue
+                }
+                output.putNextEntry(ZipEntry(entry.name).apply { time = entry.time })
+                jar.getInputStream(entry).use { it.copyTo(output) }
+                output.closeEntry()
+            }
+        }
+    }
+
+    /**
+     * Registers the classes of the startup profile for reflection and its resources to be included in the image.
+     */
+    private fun writeConfiguration(outputDir: File, profile: List<String>) {
+        val classes = profile.filter { it.endsWith(".class") && !it.startsWith("META-INF/") && '-' !in it }
+            .map { it.removeSuffix(".class").replace('/', '.') }
+        val resources = profile.filter { !it.endsWith(".class") }
+
+        outputDir.resolve("reflect-config.json").writeText(
+            classes.joinToString(",\n", "[\n", "\n]\n") { """  {"name": ${it.json()}}""" }
+        )
+        outputDir.resolve("resource-config.json").writeText(
+            resources.joinToString(",\n", "{\n  \"resources\": {\"includes\": [\n", "\n  ]},\n  \"bundles\": []\n}\n") {
+                """    {"pattern": ${Regex.escape(it).json()}}"""
+            }
+        )
+    }
+
+    private fun String.json() = buildString {
+        append('"')
+        for (char in this@json) {
+            when {
+                char == '"' || char == '\\' -> append('\\').append(char)
+                char < ' ' -> append("\\u%04x".format(char.code))
+                else -> append(char)
+            }
+        }
+        append('"')
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp
+
+import org.gradle.api.DefaultTask
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.provider.ListProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Classpath
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.TaskAction
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.commons.ClassRemapper
+import org.objectweb.asm.commons.Remapper
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+/**
+ * Finds the classes of the bundled jars that can be reached from the application main class, the keep rules and the
+ * service providers, following every class referenced by the reachable classes and every string constant
+ * that is the name of a known class.
+ *
+ * The result is written to [SingleJarLauncher.REACHABLE_RESOURCE], the bundled jars are not changed.
+ *
+ * @author joserobjr
+ * @since 2021-08-16
+ */
+@CacheableTask
+abstract class GenerateSingleJarReachability : DefaultTask() {
+    /**
+     * The jars that are bundled in `META-INF/lib`.
+     */
+    @get:Classpath
+    abstract val libraries: ConfigurableFileCollection
+
+    /**
+     * The classes of the application itself, they are always kept.
+     */
+    @get:Classpath
+    abstract val application: ConfigurableFileCollection
+
+    @get:Input
+    abstract val mainClassName: Property<String>
+
+    /**
+     * Classes that are always reachable, like the ones only loaded by reflection. Either a class name,
+     * `some.package.*` for the classes of a package or `some.package.**` to include the sub packages.
+     */
+    @get:Input
+    abstract val keepRules: ListProperty<String>
+
+    @get:OutputDirectory
+    abstract val outputDirectory: DirectoryProperty
+
+    @TaskAction
+    fun generate() {
+        val applicationArchives = application.files.filter { it.isFile }.map { ZipFile(it) }
+        val libraryArchives = libraries.files.filter { it.isFile }.map { ZipFile(it) }
+        try {
+            val reachable = findReachableEntries(applicationArchives, libraryArchives)
+            val output = outputDirectory.get().asFile.resolve(SingleJarLauncher.REACHABLE_RESOURCE)
+            output.parentFile.mkdirs()
+            output.writeText(reachable.sorted().joinToString("\n", postfix = "\n"))
+        } finally {
+            (applicationArchives + libraryArchives).forEach { it.close() }
+        }
+    }
+
+    private fun findReachableEntries(applicationArchives: List<ZipFile>, libraryArchives: List<ZipFile>): Set<String> {
+        // All the places where each class is found, including the multi-release versions
+        val classes = HashMap<String, MutableList<Pair<ZipFile, ZipEntry>>>()
+        val pending = ArrayDeque<String>()
+        pending += mainClassName.get().replace('.', '/')
+
+        val keepPatterns = keepRules.get().map { it.toKeepPattern() }
+        val libraries = libraryArchives.toHashSet()
+        var total = 0
+        (applicationArchives + libraryArchives).forEach { zip ->
+            for (entry in zip.entries()) {
+                val name = entry.name
+                if (name.startsWith("META-INF/services/") && !entry.isDirectory) {
+                    pending += name.substringAfterLast('/').replace('.', '/')
+                    zip.getInputStream(entry).bufferedReader().useLines { lines ->
+                        lines.map { it.substringBefore('#').trim() }.filter { it.isNotEmpty() }
+                            .forEach { pending += it.replace('.', '/') }
+                    }
+                }
+                val internalName = name.classInternalName() ?: continue
+                classes.getOrPut(internalName) { ArrayList(1) } += zip to entry
+                if (zip in libraries) {
+                    total++
+                }
+                if (keepPatterns.any { it.matches(internalName) }) {
+                    pending += internalName
+                }
+            }
+        }
+
+        val visited = HashSet<String>()
+        val reachable = HashSet<String>()
+        val remapper = object : Remapper() {
+            override fun map(internalName: String): String {
+                if (internalName !in visited && internalName in classes) {
+                    pending += internalName
+                }
+                return internalName
+            }
+
+            override fun mapValue(value: Any?): Any? {
+                if (value is String && value.length < 512) {
+                    map(value.replace('.', '/'))
+                }
+                return super.mapValue(value)
+            }
+        }
+        val visitor = ClassRemapper(object : ClassVisitor(Opcodes.ASM9) {}, remapper)
+
+        while (pending.isNotEmpty()) {
+            val internalName = pending.removeFirst()
+            if (!visited.add(internalName)) {
+                continue
+            }
+            val locations = classes[internalName] ?: continue
+            for ((zip, entry) in locations) {
+                if (zip in libraries) {
+                    reachable += entry.name
+                }
+                try {
+                    val bytes = zip.getInputStream(entry).use { it.readBytes() }
+                    ClassReader(bytes).accept(visitor, ClassReader.SKIP_DEBUG or ClassReader.SKIP_FRAMES)
+                } catch (e: RuntimeException) {
+                    logger.warn("The class {} of {} could not be analysed: {}", entry.name, zip.name, e.toString())
+                }
+            }
+        }
+
+        logger.info("{} of {} classes of the bundled jars are reachable", reachable.size, total)
+        return reachable
+    }
+
+    private fun String.classInternalName(): String? {
+        if (!endsWith(".class")) {
+            return null
+        }
+        val base = if (startsWith(VERSIONS_PREFIX)) {
+            substringAfter('/', "").substringAfter('/', "").substringAfter('/', "")
+        } else {
+            this
+        }
+        if (base.isEmpty() || base.startsWith("META-INF/") || base.endsWith("module-info.class")) {
+            return null
+        }
+        return base.removeSuffix(".class")
+    }
+
+    private fun String.toKeepPattern(): Regex {
+        val internalName = trim().replace('.', '/')
+        return when {
+            internalName.endsWith("/**") -> Regex(Regex.escape(internalName.removeSuffix("**")) + ".+")
+            internalName.endsWith("/*") -> Regex(Regex.escape(internalName.removeSuffix("*")) + "[^/]+")
+            else -> Regex(Regex.escape(internalName))
+        }
+    }
+
+    private companion object {
+        const val VERSIONS_PREFIX = "META-INF/versions/"
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp
+
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.provider.ListProperty
+import org.gradle.api.provider.Property
+
+/**
+ * Options of the single jar applications, available as `singleJarApplication` in the build scripts.
+ *
+ * @author joserobjr
+ * @since 2021-08-15
+ */
+abstract class SingleJarApplicationExtension {
+    companion object {
+        const val NAME = "singleJarApplication"
+    }
+
+    /**
+     * How the launcher loads the bundled jars by default, either `eager`, `offheap`, `lazy`, `mapped` or `extract`.
+     * It's written to the manifest of the single jar and can still be changed at startup with `-Dsinglejar.mode`.
+     *
+     * Defaults to `eager`.
+     */
+    abstract val launcher: Property<String>
+
+    /**
+     * Makes the launcher also load the classes and resources of the application, indexing the single jar like the
+     * bundled jars, instead of loading them with a second class loader. It's written to the manifest of the single jar
+     * and can still be changed at startup with `-Dsinglejar.singleLoader`.
+     *
+     * Disabled by default.
+     */
+    abstract val singleClassLoader: Property<Boolean>
+
+    /**
+     * Stores the jars inside `META-INF/lib` without compressing them again, this makes the single jar bigger
+     * but allows the launcher to read them directly from the memory mapped single jar in the `mapped` mode.
+     *
+     * Enabled by default when the [launcher] is `mapped`.
+     */
+    abstract val storeNestedJars: Property<Boolean>
+
+    /**
+     * Analyses the bytecode at build time to find the classes of the bundled jars that can't be reached from the
+     * application main class, the [keepClasses] and the service providers. The launcher still bundles them,
+     * but don't preload them, they are only inflated if they are requested anyway.
+     *
+     * Disabled by default.
+     */
+    abstract val pruneUnreachableClasses: Property<Boolean>
+
+    /**
+     * Classes that are always considered reachable by [pruneUnreachableClasses], like the ones that are only loaded
+     * by reflection. Either a class name, `some.package.*` for the classes of a package or `some.package.**`
+     * to include the sub packages.
+     */
+    abstract val keepClasses: ListProperty<String>
+
+    /**
+     * The arguments given to the application when it is executed by the tasks that record the class data sharing
+     * archives, like `distSingleJarAppCds`. The recording stops when the main method returns.
+     */
+    abstract val cdsTrainingArgs: ListProperty<String>
+
+    /**
+     * The list of classes and resources that the launcher loads in background threads as soon as it starts,
+     * in the order they are listed. It is recorded by tasks like `distSingleJarAppProfile` and is meant to be
+     * committed with the project, it's bundled in the single jar when it exists.
+     *
+     * Defaults to `src/singleJar/startup.profile`.
+     */
+    abstract val startupProfile: RegularFileProperty
+
+    /**
+     * The arguments given to the application when it is executed to record the [startupProfile].
+     * The recording stops when the main method returns.
+     *
+     * Defaults to the [cdsTrainingArgs].
+     */
+    abstract val startupProfileArgs: ListProperty<String>
+
+    /**
+     * The `native-image` executable used by tasks like `distSingleJarAppNative`, either a path or a command
+     * found in the `PATH`. Any program that accepts the same arguments can be used instead, to test the build.
+     *
+     * Defaults to `native-image`.
+     */
+    abstract val nativeImageExecutable: Property<String>
+
+    /**
+     * Extra arguments given to the [nativeImageExecutable], before the main class.
+     */
+    abstract val nativeImageArgs: ListProperty<String>
+}
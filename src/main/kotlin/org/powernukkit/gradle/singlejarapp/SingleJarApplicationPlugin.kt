@@ -27,15 +27,13 @@ import org.gradle.api.internal.plugins.DefaultArtifactPublicationSet
 import org.gradle.api.plugins.ApplicationPlugin
 import org.gradle.api.plugins.JavaApplication
 import org.gradle.api.plugins.JavaPlugin
+import org.gradle.api.tasks.Exec
+import org.gradle.api.tasks.JavaExec
+import org.gradle.api.tasks.TaskProvider
 import org.gradle.api.tasks.application.CreateStartScripts
 import org.gradle.api.tasks.bundling.Jar
-import org.objectweb.asm.ClassReader
-import org.objectweb.asm.ClassWriter
-import org.objectweb.asm.Type
-import org.objectweb.asm.commons.ClassRemapper
-import org.objectweb.asm.commons.SimpleRemapper
+import org.gradle.process.CommandLineArgumentProvider
 import java.io.File
-import java.nio.file.Paths
 import java.util.concurrent.Callable
 
 /**
@@ -45,23 +43,51 @@ import java.util.concurrent.Callable
 class SingleJarApplicationPlugin: Plugin<Project> {
     companion object {
         const val GENERATE_SINGLE_JAR_LAUNCHER_CLASS_TASK_NAME = "generateSingleJarLauncherClass"
+        const val GENERATE_SINGLE_JAR_INDEX_TASK_NAME = "generateSingleJarIndex"
+        const val GENERATE_SINGLE_JAR_REACHABILITY_TASK_NAME = "generateSingleJarReachability"
+
+        private val LAUNCHER_MODES = listOf(
+            SingleJarLauncher.MODE_EAGER,
+            SingleJarLauncher.MODE_OFF_HEAP,
+            SingleJarLauncher.MODE_LAZY,
+            SingleJarLauncher.MODE_MAPPED,
+            SingleJarLauncher.MODE_EXTRACT,
+        )
     }
 
     @Suppress("DEPRECATION", "TYPEALIAS_EXPANSION_DEPRECATION")
     private val Project.applicationConvention get() = convention.plugins["application"] as AppConvention
     private val Project.applicationExtension get()= extensions.getByType(JavaApplication::class.java)
     private val Project.launcherClassDir get() = buildDir.resolve("singleJarLauncher")
+    private val Project.indexDir get() = buildDir.resolve("singleJarIndex")
+    private val Project.reachabilityDir get() = buildDir.resolve("singleJarReachability")
+    private val Project.profileDir get() = buildDir.resolve("singleJarProfile")
+    private val Project.singleJarExtension get() = extensions.getByType(SingleJarApplicationExtension::class.java)
+    private val SingleJarApplicationExtension.launcherMode get() = launcher.map {
+        require(it in LAUNCHER_MODES) { "Unknown launcher $it, it must be one of $LAUNCHER_MODES" }
+        it
+    }
     private val Project.mainClassName: String get() = requireNotNull(applicationExtension.mainClass.orNull ?: applicationConvention.mainClassName) {
         "application.mainClass was not specified"
     }
-    private val Project.outputLauncherClassInternalName get() = mainClassName.replace('.', '/') + "\$SingleJarLauncher"
-    private val Project.outputLauncherClassFile: File get() {
-        return launcherClassDir.resolve(Paths.get("$outputLauncherClassInternalName.class").toFile())
-    }
 
     override fun apply(project: Project) = with(project) {
         pluginManager.apply(ApplicationPlugin::class.java)
+        extensions.create(SingleJarApplicationExtension.NAME, SingleJarApplicationExtension::class.java).apply {
+            launcher.convention(SingleJarLauncher.MODE_EAGER)
+            singleClassLoader.convention(false)
+            storeNestedJars.convention(launcher.map { it == SingleJarLauncher.MODE_MAPPED })
+            pruneUnreachableClasses.convention(false)
+            keepClasses.convention(emptyList())
+            cdsTrainingArgs.convention(emptyList())
+            startupProfile.convention(layout.projectDirectory.file("src/singleJar/startup.profile"))
+            startupProfileArgs.convention(cdsTrainingArgs)
+            nativeImageExecutable.convention("native-image")
+            nativeImageArgs.convention(emptyList())
+        }
         addGenerateLauncherClassTask()
+        addGenerateIndexTask()
+        addGenerateReachabilityTask()
         extensions.configure(DistributionContainer::class.java) { distributions ->
             distributions.all { dist ->
                 val taskName = if (dist.name == DistributionPlugin.MAIN_DISTRIBUTION_NAME) {
@@ -69,69 +95,60 @@ class SingleJarApplicationPlugin: Plugin<Project> {
                 } else {
                     dist.name + "DistSingleJarApp"
                 }
-                addArchiveTask(taskName, dist)
+                val archiveTask = addArchiveTask(taskName, dist)
+                addCdsArchiveTask(taskName + "Cds", archiveTask)
+                val recordProfileTask = addRecordStartupProfileTask(taskName + "RecordProfile", archiveTask)
+                addStartupProfileTask(taskName + "Profile", recordProfileTask)
+                val nativeInputsTask = addNativeImageInputsTask(taskName + "NativeInputs", archiveTask)
+                addNativeImageTask(taskName + "Native", nativeInputsTask)
             }
         }
     }
 
     private fun Project.addGenerateLauncherClassTask() {
-        tasks.register(GENERATE_SINGLE_JAR_LAUNCHER_CLASS_TASK_NAME) { task ->
+        tasks.register(GENERATE_SINGLE_JAR_LAUNCHER_CLASS_TASK_NAME, GenerateSingleJarLauncherClass::class.java) { task ->
             with(task) {
                 dependsOn(JavaPlugin.CLASSES_TASK_NAME)
                 description = "Generates a class that will setup a ClassLoader to load the bundled jar files inside the single jar application"
-                outputs.file(Callable { outputLauncherClassFile })
-                doLast {
-                    val fromInternalName = Type.getInternalName(SingleJarLauncher::class.java)
-                    val finalInternalName = mainClassName.replace('.', '/') + "\$SingleJarLauncher"
-
-                    val mappings = mapOf(
-                        fromInternalName to finalInternalName,
-                        "$fromInternalName\$1" to "$finalInternalName\$1",
-                        "$fromInternalName\$1\$1" to "$finalInternalName\$1\$1",
-                        //"$fromInternalName\$1\$1\$1" to "$finalInternalName\$1\$1\$1",
-                    )
-
-                    val packageDir = outputLauncherClassFile.parentFile.mkdirsOrFail()
-                    packageDir.remapClass("SingleJarLauncher", mappings)
-                    packageDir.remapClass("SingleJarLauncher\$1", mappings)
-                    packageDir.remapClass("SingleJarLauncher\$1\$1", mappings)
-                    //packageDir.remapClass("SingleJarLauncher\$1\$1\$1", mappings)
-                }
+                mainClassName.set(provider { this@addGenerateLauncherClassTask.mainClassName })
+                launcherClassName.convention(SingleJarLauncher::class.java.name)
+                outputDirectory.set(launcherClassDir)
             }
         }
     }
 
-    private fun File.remapClass(resource: String, mappings: Map<String, String>) {
-        val outputClass = resolve(mappings.entries.first { it.key.endsWith(resource) }.value.substringAfterLast('/') + ".class")
-        outputClass.writeBytes(remap("$resource.class", mappings))
-    }
-
-    private fun remap(resource: String, mappings: Map<String, String>): ByteArray {
-        val url = checkNotNull(SingleJarLauncher::class.java.run { getResource(resource) }) { "Resource not found: $resource" }
-        val reader = ClassReader(url.readBytes())
-        val writer = ClassWriter(0)
-        val visitor = ClassRemapper(writer, SimpleRemapper(mappings))
-        reader.accept(visitor, ClassReader.EXPAND_FRAMES)
-        return writer.toByteArray()
+    private fun Project.addGenerateIndexTask() {
+        tasks.register(GENERATE_SINGLE_JAR_INDEX_TASK_NAME, GenerateSingleJarIndex::class.java) { task ->
+            with(task) {
+                description = "Generates an index of the bundled jar files and their merged service files, so the launcher don't need to scan them when it starts"
+                libraries.from(configurations.getByName(JavaPlugin.RUNTIME_CLASSPATH_CONFIGURATION_NAME))
+                outputDirectory.set(indexDir)
+            }
+        }
     }
 
-    private fun File.mkdirsOrFail(): File {
-        if (isDirectory) {
-            return this
+    private fun Project.addGenerateReachabilityTask() {
+        tasks.register(GENERATE_SINGLE_JAR_REACHABILITY_TASK_NAME, GenerateSingleJarReachability::class.java) { task ->
+            with(task) {
+                description = "Finds the classes of the bundled jar files that can be reached from the application, so the launcher only preloads them"
+                libraries.from(configurations.getByName(JavaPlugin.RUNTIME_CLASSPATH_CONFIGURATION_NAME))
+                application.from(tasks.named(JavaPlugin.JAR_TASK_NAME, Jar::class.java).flatMap { it.archiveFile })
+                mainClassName.set(provider { this@addGenerateReachabilityTask.mainClassName })
+                keepRules.set(singleJarExtension.keepClasses)
+                outputDirectory.set(reachabilityDir)
+            }
         }
-        check(mkdirs()) { "Could not create the directory $this" }
-        return this
     }
 
-    private fun Project.addArchiveTask(taskName: String, distribution: Distribution) {
-        val archiveTask = tasks.register(taskName, Jar::class.java) { task ->
+    private fun Project.addArchiveTask(taskName: String, distribution: Distribution): TaskProvider<SingleJarArchive> {
+        val archiveTask = tasks.register(taskName, SingleJarArchive::class.java) { task ->
             with(task) {
                 description = "Bundles the project as an executable single jar application."
                 group = "distribution"
                 archiveBaseName.convention(distribution.distributionBaseName)
                 archiveClassifier.convention("fatjar")
                 destinationDirectory.convention(layout.buildDirectory.dir("distributions"))
-                dependsOn(GENERATE_SINGLE_JAR_LAUNCHER_CLASS_TASK_NAME)
+                dependsOn(GENERATE_SINGLE_JAR_LAUNCHER_CLASS_TASK_NAME, GENERATE_SINGLE_JAR_INDEX_TASK_NAME)
 
                 val jar = tasks.named(JavaPlugin.JAR_TASK_NAME).get() as Jar
                 val scripts = tasks.named(ApplicationPlugin.TASK_START_SCRIPTS_NAME).get() as CreateStartScripts
@@ -152,16 +169,162 @@ class SingleJarApplicationPlugin: Plugin<Project> {
                     zipTree(jar.archiveFile)
                 })
                 task.from(launcherClassDir)
+                task.from(indexDir)
+                val reachability = tasks.named(GENERATE_SINGLE_JAR_REACHABILITY_TASK_NAME, GenerateSingleJarReachability::class.java)
+                val pruneUnreachableClasses = singleJarExtension.pruneUnreachableClasses
+                task.from(Callable {
+                    if (pruneUnreachableClasses.get()) reachability.flatMap { it.outputDirectory } else emptyList<File>()
+                })
+                val startupProfile = singleJarExtension.startupProfile
+                task.from(Callable { startupProfile.get().asFile.takeIf { it.isFile } ?: emptyList<File>() }) { profile ->
+                    profile.into(SingleJarLauncher.PROFILE_RESOURCE.substringBeforeLast('/'))
+                    profile.rename { SingleJarLauncher.PROFILE_RESOURCE.substringAfterLast('/') }
+                }
                 task.fileMode = "755".toInt(8)
 
+                val mainClass = provider { "$mainClassName\$SingleJarLauncher" }
+                val launcherMode = singleJarExtension.launcherMode
+                val singleClassLoader = singleJarExtension.singleClassLoader.map { it.toString() }
+                inputs.property("mainClass", mainClass)
+                inputs.property("launcherMode", launcherMode)
+                inputs.property("singleClassLoader", singleClassLoader)
                 manifest {
                     it.from(jar.manifest)
-                    it.attributes["Main-Class"] = "$mainClassName\$SingleJarLauncher"
                 }
+                doFirst {
+                    // Only resolved when the single jar is built, they may still be changed after this is configured
+                    manifest.attributes(mapOf(
+                        "Main-Class" to mainClass.get(),
+                        SingleJarLauncher.MODE_ATTRIBUTE to launcherMode.get(),
+                        SingleJarLauncher.SINGLE_LOADER_ATTRIBUTE to singleClassLoader.get(),
+                    ))
+                }
+                storeNestedJars.convention(singleJarExtension.storeNestedJars)
             }
         }
 
         val achieveArtifact = LazyPublishArtifact(archiveTask)
         extensions.getByType(DefaultArtifactPublicationSet::class.java).addCandidate(achieveArtifact)
+        return archiveTask
+    }
+
+    private fun Project.addCdsArchiveTask(taskName: String, archiveTask: TaskProvider<SingleJarArchive>) {
+        tasks.register(taskName, JavaExec::class.java) { task ->
+            with(task) {
+                description = "Runs the single jar application once to record a class data sharing archive for its classes, requires Java 13 or newer."
+                group = "distribution"
+
+                val singleJar = archiveTask.flatMap { it.archiveFile }
+                val cdsArchive = singleJar.map { it.asFile.resolveSibling(it.asFile.nameWithoutExtension + ".jsa") }
+                inputs.file(singleJar).withPropertyName("singleJar")
+                outputs.file(cdsArchive).withPropertyName("cdsArchive")
+
+                classpath(singleJar)
+                mainClass.set(provider { "$mainClassName\$SingleJarLauncher" })
+                val trainingArgs = singleJarExtension.cdsTrainingArgs
+                argumentProviders.add(CommandLineArgumentProvider { trainingArgs.get() })
+                jvmArgumentProviders.add(CommandLineArgumentProvider {
+                    listOf(
+                        "-XX:ArchiveClassesAtExit=${cdsArchive.get()}",
+                        "-D${SingleJarLauncher.MODE_PROPERTY}=${SingleJarLauncher.MODE_EXTRACT}",
+                        "-D${SingleJarLauncher.EXIT_AFTER_MAIN_PROPERTY}=true",
+                    )
+                })
+                doFirst {
+                    cdsArchive.get().delete()
+                }
+            }
+        }
+    }
+
+    private fun Project.addRecordStartupProfileTask(taskName: String, archiveTask: TaskProvider<SingleJarArchive>): TaskProvider<JavaExec> {
+        return tasks.register(taskName, JavaExec::class.java) { task ->
+            with(task) {
+                description = "Runs the single jar application once to record the classes and resources it loads at startup."
+                group = "distribution"
+
+                val singleJar = archiveTask.flatMap { it.archiveFile }
+                // Never the configured startup profile, it's an input of the single jar
+                val recordedProfile = profileDir.resolve("$taskName/startup.profile")
+                inputs.file(singleJar).withPropertyName("singleJar")
+                outputs.file(recordedProfile).withPropertyName("recordedProfile")
+
+                classpath(singleJar)
+                mainClass.set(provider { "$mainClassName\$SingleJarLauncher" })
+                val profileArgs = singleJarExtension.startupProfileArgs
+                argumentProviders.add(CommandLineArgumentProvider { profileArgs.get() })
+                jvmArgumentProviders.add(CommandLineArgumentProvider {
+                    listOf(
+                        "-D${SingleJarLauncher.RECORD_PROPERTY}=$recordedProfile",
+                        "-D${SingleJarLauncher.MODE_PROPERTY}=${SingleJarLauncher.MODE_LAZY}",
+                        "-D${SingleJarLauncher.EXIT_AFTER_MAIN_PROPERTY}=true",
+                    )
+                })
+                doFirst {
+                    recordedProfile.parentFile.mkdirs()
+                }
+            }
+        }
+    }
+
+    private fun Project.addStartupProfileTask(taskName: String, recordTask: TaskProvider<JavaExec>) {
+        tasks.register(taskName) { task ->
+            with(task) {
+                description = "Records the classes and resources that the single jar application loads at startup to the startup profile, " +
+                        "they are loaded ahead in background threads by the next builds of the single jar."
+                group = "distribution"
+
+                dependsOn(recordTask)
+                val recordedProfile = recordTask.map { it.outputs.files.singleFile }
+                val startupProfile = singleJarExtension.startupProfile
+                inputs.file(recordedProfile).withPropertyName("recordedProfile")
+                outputs.file(startupProfile).withPropertyName("startupProfile")
+                doLast {
+                    val target = startupProfile.get().asFile
+                    target.parentFile.mkdirs()
+                    recordedProfile.get().copyTo(target, overwrite = true)
+                }
+            }
+        }
+    }
+
+    private fun Project.addNativeImageInputsTask(taskName: String, archiveTask: TaskProvider<SingleJarArchive>): TaskProvider<GenerateSingleJarNativeImageInputs> {
+        return tasks.register(taskName, GenerateSingleJarNativeImageInputs::class.java) { task ->
+            with(task) {
+                description = "Extracts the single jar application to a flat classpath with the native-image configuration of its startup profile."
+                group = "distribution"
+                singleJar.set(archiveTask.flatMap { it.archiveFile })
+                outputDirectory.set(layout.buildDirectory.dir("singleJarNative/$taskName"))
+            }
+        }
+    }
+
+    private fun Project.addNativeImageTask(taskName: String, inputsTask: TaskProvider<GenerateSingleJarNativeImageInputs>) {
+        tasks.register(taskName, Exec::class.java) { task ->
+            with(task) {
+                description = "Builds a native image of the single jar application with the native-image executable."
+                group = "distribution"
+
+                val inputsDir = inputsTask.flatMap { it.outputDirectory }
+                val nativeImage = inputsTask.flatMap { it.singleJar }.map { singleJar ->
+                    singleJar.asFile.resolveSibling(singleJar.asFile.nameWithoutExtension + "-native")
+                }
+                inputs.dir(inputsDir).withPropertyName("nativeImageInputs")
+                outputs.file(nativeImage).withPropertyName("nativeImage")
+
+                workingDir(inputsDir)
+                val nativeImageExecutable = singleJarExtension.nativeImageExecutable
+                val extraArgs = singleJarExtension.nativeImageArgs
+                doFirst {
+                    executable = nativeImageExecutable.get()
+                }
+                argumentProviders.add(CommandLineArgumentProvider {
+                    val directory = inputsDir.get()
+                    val options = directory.file(GenerateSingleJarNativeImageInputs.ARGUMENTS_FILE).asFile.readLines().filter { it.isNotEmpty() }
+                    val mainClass = directory.file(GenerateSingleJarNativeImageInputs.MAIN_CLASS_FILE).asFile.readText().trim()
+                    options + listOf("-o", nativeImage.get().absolutePath) + extraArgs.get() + mainClass
+                })
+            }
+        }
     }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp
+
+import org.gradle.api.internal.file.copy.CopyAction
+import org.gradle.api.internal.file.copy.CopyActionProcessingStream
+import org.gradle.api.internal.file.copy.FileCopyDetailsInternal
+import org.gradle.api.provider.Property
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.WorkResult
+import org.gradle.api.tasks.WorkResults
+import org.gradle.api.tasks.bundling.Jar
+import org.gradle.api.tasks.bundling.ZipEntryCompression
+import java.io.File
+import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.util.zip.ZipEntry
+
+/**
+ * Builds the single jar reusing the compressed data of the previous single jar for every file that didn't change,
+ * so only the changed files are compressed again.
+ *
+ * The previous single jar is only a source of compressed data, what is reused is inflated and checked against the
+ * files being archived first, so the contents of the single jar only depend on the inputs of the task. Like the
+ * [Jar] task, ZIP64 is only used when it's needed, and as it's not supported, the task fails when the single jar
+ * would need it.
+ *
+ * @author joserobjr
+ * @since 2021-08-16
+ */
+@CacheableTask
+abstract class SingleJarArchive : Jar() {
+    /**
+     * Stores the jars inside `META-INF/lib` without compressing them again.
+     */
+    @get:Input
+    abstract val storeNestedJars: Property<Boolean>
+
+    override fun createCopyAction(): CopyAction {
+        return SingleJarCopyAction(
+            archiveFile.get().asFile,
+            storeNestedJars.get(),
+            entryCompression != ZipEntryCompression.STORED,
+            isPreserveFileTimestamps,
+            metadataCharset?.let { Charset.forName(it) } ?: Charsets.UTF_8,
+        )
+    }
+}
+
+private const val FILE_TYPE = 0x8000
+private const val DIRECTORY_TYPE = 0x4000
+private const val DOS_DIRECTORY = 0x10
+
+/**
+ * The time used by Gradle when the file timestamps are not preserved.
+ */
+private val CONSTANT_DOS_TIME = dosTime(LocalDateTime.of(1980, 2, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli())
+
+private class SingleJarCopyAction(
+    private val archive: File,
+    private val storeNestedJars: Boolean,
+    private val compress: Boolean,
+    private val preserveFileTimestamps: Boolean,
+    private val charset: Charset,
+) : CopyAction {
+    override fun execute(stream: CopyActionProcessingStream): WorkResult {
+        val target = archive.toPath()
+        val temp = target.resolveSibling("${target.fileName}.tmp")
+        try {
+            openPrevious(target).use { previous ->
+                val previousEntries = previous?.entries?.associateBy { it.name } ?: emptyMap()
+                val channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)
+                ZipArchiveWriter(channel, charset).use { writer ->
+                    stream.process { details ->
+                        writer.add(details, previous, previousEntries)
+                    }
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING)
+        } finally {
+            Files.deleteIfExists(temp)
+        }
+        return WorkResults.didWork(true)
+    }
+
+    private fun openPrevious(target: Path): ZipArchiveReader? {
+        if (!Files.isRegularFile(target)) {
+            return null
+        }
+        return try {
+            ZipArchiveReader(target, charset)
+        } catch (e: IOException) {
+            // Not something that can be reused, everything is compressed again
+            null
+        }
+    }
+
+    private fun ZipArchiveWriter.add(
+        details: FileCopyDetailsInternal,
+        previous: ZipArchiveReader?,
+        previousEntries: Map<String, ZipArchiveEntry>
+    ) {
+        val dosTime = if (preserveFileTimestamps) dosTime(details.lastModified) else CONSTANT_DOS_TIME
+        if (details.isDirectory) {
+            val attributes = ((DIRECTORY_TYPE or details.mode) shl 16) or DOS_DIRECTORY
+            writeDirectory(details.relativePath.pathString + '/', dosTime, attributes)
+            return
+        }
+
+        val name = details.relativePath.pathString
+        val attributes = (FILE_TYPE or details.mode) shl 16
+        val checksum = details.open().use { it.checksum() }
+        val method = if (!compress || storeNestedJars && isNestedJar(name)) ZipEntry.STORED else ZipEntry.DEFLATED
+
+        val unchanged = previousEntries[name]
+        if (previous != null && unchanged != null && unchanged.method == method
+            && unchanged.size == checksum.size && unchanged.crc == checksum.crc && previous.isIntact(unchanged)) {
+            copy(previous, unchanged, dosTime, attributes)
+        } else {
+            write(name, method, dosTime, attributes, checksum) { details.open() }
+        }
+    }
+}
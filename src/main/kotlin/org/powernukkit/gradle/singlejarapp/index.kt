@@ -0,0 +1,130 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp
+
+import org.gradle.api.logging.Logger
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.jar.JarFile
+import java.util.zip.CRC32
+import java.util.zip.ZipFile
+
+/**
+ * Writes the index of the jars that will be placed in `META-INF/lib`, in the format read by [SingleJarLauncher].
+ *
+ * Jars that can't be indexed are left out, the launcher reads their central directory at runtime instead.
+ *
+ * @author joserobjr
+ * @since 2021-08-15
+ */
+internal fun writeSingleJarIndex(libraries: Iterable<File>, output: File, logger: Logger) {
+    val blocks = libraries.filter { it.isFile }.mapNotNull { library ->
+        val path = "/META-INF/lib/${library.name}"
+        val bytes = library.readBytes()
+        val block = ByteArrayOutputStream()
+        var count = 0
+        val multiRelease: Boolean
+        try {
+            // Read at build time, so the launcher doesn't need to open the manifest of each jar at startup
+            multiRelease = JarFile(library).use { jar ->
+                jar.manifest?.mainAttributes?.getValue("Multi-Release").equals("true", ignoreCase = true)
+            }
+            DataOutputStream(block).use { entries ->
+                SingleJarLauncher.readCentralDirectory(SingleJarLauncher.NestedJar(path, ByteBuffer.wrap(bytes))) { name, entry ->
+                    entries.writeUTF(name)
+                    entries.writeShort(entry.method)
+                    entries.writeInt(entry.localHeaderOffset)
+                    entries.writeInt(entry.compressedSize)
+                    entries.writeInt(entry.size)
+                    entries.writeInt(entry.crc)
+                    count++
+                }
+            }
+        } catch (e: IOException) {
+            logger.warn("The library {} could not be indexed: {}", library, e.message)
+            return@mapNotNull null
+        }
+
+        val crc = CRC32().apply { update(bytes) }.value
+        ByteArrayOutputStream(block.size() + path.length + 23).also { header ->
+            DataOutputStream(header).use {
+                it.writeUTF(path)
+                it.writeLong(bytes.size.toLong())
+                it.writeInt(crc.toInt())
+                it.writeBoolean(multiRelease)
+                it.writeInt(count)
+                it.writeInt(block.size())
+                block.writeTo(it)
+            }
+        }
+    }
+
+    output.parentFile.mkdirs()
+    DataOutputStream(output.outputStream().buffered()).use { out ->
+        out.writeInt(SingleJarLauncher.INDEX_MAGIC)
+        out.writeShort(SingleJarLauncher.INDEX_VERSION)
+        out.writeInt(blocks.size)
+        blocks.forEach { it.writeTo(out) }
+    }
+}
+
+/**
+ * Reads the service provider files of the jars that will be placed in `META-INF/lib` into a single file, in the format
+ * read by [SingleJarLauncher]: for each jar with services, its path, size and CRC separated by tabs, then each service
+ * file name followed by its providers, without comments.
+ *
+ * The launcher merges them, jars that can't be read are left out and the launcher still returns their own service files,
+ * like it does for jars that are not the same anymore.
+ */
+internal fun writeSingleJarServices(libraries: Iterable<File>, output: File, logger: Logger) {
+    output.parentFile.mkdirs()
+    output.bufferedWriter().use { writer ->
+        libraries.filter { it.isFile }.forEach { library ->
+            val services = LinkedHashMap<String, List<String>>()
+            try {
+                ZipFile(library).use { zip ->
+                    for (entry in zip.entries()) {
+                        val service = entry.name.removePrefix(SingleJarLauncher.SERVICES_PREFIX)
+                        if (service == entry.name || service.isEmpty() || '/' in service || entry.isDirectory) {
+                            continue
+                        }
+                        services[entry.name] = zip.getInputStream(entry).bufferedReader().useLines { lines ->
+                            lines.map { it.substringBefore('#').trim() }.filter { it.isNotEmpty() }.toList()
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                logger.warn("The services of the library {} could not be read: {}", library, e.message)
+                return@forEach
+            }
+            if (services.isEmpty()) {
+                return@forEach
+            }
+
+            val bytes = library.readBytes()
+            val crc = CRC32().apply { update(bytes) }.value.toInt()
+            writer.append("/META-INF/lib/${library.name}\t${bytes.size}\t$crc\n")
+            services.forEach { (name, providers) ->
+                writer.append(name).append('\n')
+                providers.forEach { writer.append(it).append('\n') }
+            }
+        }
+    }
+}
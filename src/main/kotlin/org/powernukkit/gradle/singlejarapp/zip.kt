@@ -0,0 +1,450 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp
+
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.FilterOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.time.Instant
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.InflaterInputStream
+import java.util.zip.Inflater
+import java.util.zip.ZipEntry
+import java.util.zip.ZipException
+
+private const val LOCAL_SIGNATURE = 0x04034b50
+private const val CENTRAL_SIGNATURE = 0x02014b50
+private const val END_SIGNATURE = 0x06054b50
+private const val LOCAL_HEADER_SIZE = 30
+private const val CENTRAL_HEADER_SIZE = 46
+private const val END_HEADER_SIZE = 22
+private const val FLAG_UTF8 = 1 shl 11
+private const val UNIX_VERSION_MADE_BY = (3 shl 8) or 20
+private const val ZIP64_LIMIT = 0xFFFFFFFFL
+private const val ZIP64_ENTRIES_LIMIT = 0xFFFF
+
+/**
+ * Thrown when the archive would need the ZIP64 format, which is not written.
+ */
+internal class Zip64RequiredException(message: String) : ZipException(
+    "$message. ZIP64 archives are not supported by the single jar, even with zip64 enabled"
+)
+
+/**
+ * The CRC-32 and the size of some content.
+ */
+internal class ContentChecksum(val crc: Int, val size: Long)
+
+/**
+ * Reads the stream until its end, without keeping what was read.
+ */
+internal fun InputStream.checksum(): ContentChecksum {
+    val input = CheckedInputStream(this, CRC32())
+    val buffer = ByteArray(8192)
+    var size = 0L
+    while (true) {
+        val read = input.read(buffer)
+        if (read < 0) {
+            break
+        }
+        size += read
+    }
+    return ContentChecksum(input.checksum.value.toInt(), size)
+}
+
+/**
+ * A file or directory listed in the central directory of a ZIP archive, with what is needed to copy it
+ * to another archive without touching its compressed data.
+ *
+ * @author joserobjr
+ * @since 2021-08-15
+ */
+internal class ZipArchiveEntry(
+    val name: String,
+    val versionMadeBy: Int,
+    val flags: Int,
+    val method: Int,
+    val dosTime: Int,
+    val crc: Int,
+    val compressedSize: Long,
+    val size: Long,
+    val externalAttributes: Int,
+    val localHeaderOffset: Long,
+) {
+    val isDirectory get() = name.endsWith('/')
+}
+
+/**
+ * A ZIP archive opened for reading its entries as they are stored. The names that are not flagged as UTF-8
+ * are read with the given [charset].
+ *
+ * @author joserobjr
+ * @since 2021-08-15
+ */
+internal class ZipArchiveReader(private val path: Path, private val charset: Charset = Charsets.UTF_8) : Closeable {
+    private val channel = FileChannel.open(path, StandardOpenOption.READ)
+
+    val entries: List<ZipArchiveEntry> = try {
+        readEntries()
+    } catch (e: Exception) {
+        channel.close()
+        throw e
+    }
+
+    private fun readEntries(): List<ZipArchiveEntry> {
+        val size = channel.size()
+        val tailSize = minOf(size, END_HEADER_SIZE + 0xFFFFL).toInt()
+        val tail = read(size - tailSize, tailSize)
+        var end = tailSize - END_HEADER_SIZE
+        while (end >= 0 && tail.getInt(end) != END_SIGNATURE) {
+            end--
+        }
+        if (end < 0) {
+            throw ZipException("End of central directory not found in $path")
+        }
+
+        val count = tail.getShort(end + 10).toInt() and 0xFFFF
+        val directorySize = tail.getInt(end + 12).toLong() and 0xFFFFFFFFL
+        val directoryOffset = tail.getInt(end + 16).toLong() and 0xFFFFFFFFL
+        if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+            throw ZipException("ZIP64 archives are not supported: $path")
+        }
+
+        val directory = read(directoryOffset, directorySize.toInt())
+        var pos = 0
+        return List(count) {
+            if (directory.getInt(pos) != CENTRAL_SIGNATURE) {
+                throw ZipException("Invalid central directory entry at ${directoryOffset + pos}")
+            }
+            val nameLength = directory.getShort(pos + 28).toInt() and 0xFFFF
+            val nameBytes = ByteArray(nameLength)
+            (directory as Buffer).position(pos + CENTRAL_HEADER_SIZE)
+            directory.get(nameBytes)
+            val flags = directory.getShort(pos + 8).toInt() and 0xFFFF
+            val entry = ZipArchiveEntry(
+                name = String(nameBytes, if (flags and FLAG_UTF8 != 0) Charsets.UTF_8 else charset),
+                versionMadeBy = directory.getShort(pos + 4).toInt() and 0xFFFF,
+                flags = flags,
+                method = directory.getShort(pos + 10).toInt() and 0xFFFF,
+                dosTime = directory.getInt(pos + 12),
+                crc = directory.getInt(pos + 16),
+                compressedSize = directory.getInt(pos + 20).toLong() and 0xFFFFFFFFL,
+                size = directory.getInt(pos + 24).toLong() and 0xFFFFFFFFL,
+                externalAttributes = directory.getInt(pos + 38),
+                localHeaderOffset = directory.getInt(pos + 42).toLong() and 0xFFFFFFFFL,
+            )
+            pos += CENTRAL_HEADER_SIZE + nameLength +
+                    (directory.getShort(pos + 30).toInt() and 0xFFFF) +
+                    (directory.getShort(pos + 32).toInt() and 0xFFFF)
+            entry
+        }
+    }
+
+    private fun read(position: Long, length: Int): ByteBuffer {
+        val buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN)
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw ZipException("Unexpected end of the archive")
+            }
+        }
+        (buffer as Buffer).flip()
+        return buffer
+    }
+
+    /**
+     * Where the compressed data of the entry starts.
+     */
+    fun dataOffset(entry: ZipArchiveEntry): Long {
+        val header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE)
+        if (header.getInt(0) != LOCAL_SIGNATURE) {
+            throw ZipException("Invalid local header for ${entry.name}")
+        }
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE +
+                (header.getShort(26).toInt() and 0xFFFF) + (header.getShort(28).toInt() and 0xFFFF)
+    }
+
+    /**
+     * Streams the uncompressed content of the entry.
+     */
+    fun open(entry: ZipArchiveEntry): InputStream {
+        val raw = openRaw(dataOffset(entry), entry.compressedSize)
+        return when (entry.method) {
+            ZipEntry.STORED -> raw
+            ZipEntry.DEFLATED -> object : InflaterInputStream(raw, Inflater(true), 8192) {
+                override fun close() {
+                    super.close()
+                    inf.end()
+                }
+            }
+            else -> throw ZipException("Unsupported compression method ${entry.method} for ${entry.name}")
+        }
+    }
+
+    /**
+     * Checks if the entry still has the content described by the central directory, by inflating it.
+     */
+    fun isIntact(entry: ZipArchiveEntry): Boolean {
+        return try {
+            val checksum = open(entry).use { it.checksum() }
+            checksum.size == entry.size && checksum.crc == entry.crc
+        } catch (e: IOException) {
+            false
+        }
+    }
+
+    fun openRaw(position: Long, length: Long): InputStream = object : InputStream() {
+        private var current = position
+        private val end = position + length
+
+        override fun read(): Int {
+            val single = ByteArray(1)
+            return if (read(single, 0, 1) < 0) -1 else single[0].toInt() and 0xFF
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (current >= end) {
+                return -1
+            }
+            val read = channel.read(ByteBuffer.wrap(b, off, minOf(len.toLong(), end - current).toInt()), current)
+            if (read > 0) {
+                current += read
+            }
+            return read
+        }
+    }
+
+    override fun close() {
+        channel.close()
+    }
+}
+
+/**
+ * Writes a ZIP archive either copying entries exactly as they are compressed in other archives,
+ * or adding new content, which is compressed as it's streamed. The names are written with the given [charset],
+ * and flagged as UTF-8 when it's UTF-8.
+ *
+ * @author joserobjr
+ * @since 2021-08-15
+ */
+internal class ZipArchiveWriter(private val channel: FileChannel, private val charset: Charset = Charsets.UTF_8) : Closeable {
+    private val output = Channels.newOutputStream(channel).buffered()
+    private val flags = if (charset == Charsets.UTF_8) FLAG_UTF8 else 0
+    private val central = ByteArrayOutputStream()
+    private var position = 0L
+    private var count = 0
+
+    /**
+     * Copies the compressed data of the entry from the [source] archive without recompressing it,
+     * with a new header that has the given time and attributes.
+     */
+    fun copy(source: ZipArchiveReader, entry: ZipArchiveEntry, dosTime: Int, externalAttributes: Int) {
+        val localHeaderOffset = position
+        writeLocalHeader(entry.name, entry.method, dosTime, entry.crc, entry.compressedSize, entry.size)
+        source.openRaw(source.dataOffset(entry), entry.compressedSize).use { it.copyTo(output) }
+        position += entry.compressedSize
+        addCentralRecord(entry.name, entry.method, dosTime, entry.crc, entry.compressedSize, entry.size,
+            externalAttributes, localHeaderOffset)
+    }
+
+    /**
+     * Adds the content with the given compression [method], either [ZipEntry.STORED] or [ZipEntry.DEFLATED].
+     * The [content] is opened once and must have the given [checksum], which was taken before, so the
+     * header can be written before the data.
+     */
+    fun write(name: String, method: Int, dosTime: Int, externalAttributes: Int, checksum: ContentChecksum, content: () -> InputStream) {
+        if (checksum.size >= ZIP64_LIMIT) {
+            throw Zip64RequiredException("The file $name has ${checksum.size} bytes")
+        }
+        val localHeaderOffset = position
+        // The compressed size of deflated content is only known after it's written
+        writeLocalHeader(name, method, dosTime, checksum.crc, if (method == ZipEntry.DEFLATED) 0 else checksum.size, checksum.size)
+
+        val data = CountingOutputStream(output)
+        val written = content().use { input ->
+            val checked = CheckedInputStream(input, CRC32())
+            if (method == ZipEntry.DEFLATED) {
+                val deflater = Deflater(Deflater.DEFAULT_COMPRESSION, true)
+                try {
+                    DeflaterOutputStream(data, deflater, 8192).apply {
+                        checked.copyTo(this)
+                        finish()
+                    }
+                } finally {
+                    deflater.end()
+                }
+            } else {
+                checked.copyTo(data)
+            }
+            ContentChecksum(checked.checksum.value.toInt(), data.count)
+        }
+        if (written.crc != checksum.crc || method == ZipEntry.STORED && written.size != checksum.size) {
+            throw IOException("The file $name changed while it was being archived")
+        }
+
+        val compressedSize = written.size
+        if (compressedSize >= ZIP64_LIMIT) {
+            throw Zip64RequiredException("The file $name has $compressedSize bytes compressed")
+        }
+        if (method == ZipEntry.DEFLATED) {
+            output.flush()
+            val size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(compressedSize.toInt())
+            (size as Buffer).flip()
+            channel.write(size, localHeaderOffset + 18)
+        }
+        position += compressedSize
+        addCentralRecord(name, method, dosTime, checksum.crc, compressedSize, checksum.size,
+            externalAttributes, localHeaderOffset)
+    }
+
+    /**
+     * Adds a directory, which has no content.
+     */
+    fun writeDirectory(name: String, dosTime: Int, externalAttributes: Int) {
+        val localHeaderOffset = position
+        writeLocalHeader(name, ZipEntry.STORED, dosTime, 0, 0, 0)
+        addCentralRecord(name, ZipEntry.STORED, dosTime, 0, 0, 0, externalAttributes, localHeaderOffset)
+    }
+
+    private fun writeLocalHeader(name: String, method: Int, dosTime: Int, crc: Int, compressedSize: Long, size: Long) {
+        if (position >= ZIP64_LIMIT) {
+            throw Zip64RequiredException("The archive has more than $ZIP64_LIMIT bytes")
+        }
+        val nameBytes = name.toByteArray(charset)
+        val header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(LOCAL_SIGNATURE)
+            .putShort(if (method == ZipEntry.DEFLATED) 20 else 10)
+            .putShort(flags.toShort())
+            .putShort(method.toShort())
+            .putInt(dosTime)
+            .putInt(crc)
+            .putInt(compressedSize.toInt())
+            .putInt(size.toInt())
+            .putShort(nameBytes.size.toShort())
+            .putShort(0)
+        output.write(header.array())
+        output.write(nameBytes)
+        position += LOCAL_HEADER_SIZE + nameBytes.size
+    }
+
+    private fun addCentralRecord(
+        name: String, method: Int, dosTime: Int, crc: Int,
+        compressedSize: Long, size: Long, externalAttributes: Int, localHeaderOffset: Long
+    ) {
+        if (count == ZIP64_ENTRIES_LIMIT - 1) {
+            throw Zip64RequiredException("The archive has more than ${ZIP64_ENTRIES_LIMIT - 1} entries")
+        }
+        val nameBytes = name.toByteArray(charset)
+        val record = ByteBuffer.allocate(CENTRAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(CENTRAL_SIGNATURE)
+            .putShort(UNIX_VERSION_MADE_BY.toShort())
+            .putShort(if (method == ZipEntry.DEFLATED) 20 else 10)
+            .putShort(flags.toShort())
+            .putShort(method.toShort())
+            .putInt(dosTime)
+            .putInt(crc)
+            .putInt(compressedSize.toInt())
+            .putInt(size.toInt())
+            .putShort(nameBytes.size.toShort())
+            .putShort(0)
+            .putShort(0)
+            .putShort(0)
+            .putShort(0)
+            .putInt(externalAttributes)
+            .putInt(localHeaderOffset.toInt())
+        central.write(record.array())
+        central.write(nameBytes)
+        count++
+    }
+
+    /**
+     * Writes the central directory, the archive is complete after this.
+     */
+    override fun close() {
+        output.use {
+            val directoryOffset = position
+            if (directoryOffset + central.size() >= ZIP64_LIMIT) {
+                throw Zip64RequiredException("The archive has more than $ZIP64_LIMIT bytes")
+            }
+            central.writeTo(output)
+            val end = ByteBuffer.allocate(END_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(END_SIGNATURE)
+                .putShort(0)
+                .putShort(0)
+                .putShort(count.toShort())
+                .putShort(count.toShort())
+                .putInt(central.size())
+                .putInt(directoryOffset.toInt())
+                .putShort(0)
+            output.write(end.array())
+        }
+    }
+
+    /**
+     * Counts what is written, without closing the archive when the entry is finished.
+     */
+    private class CountingOutputStream(output: OutputStream) : FilterOutputStream(output) {
+        var count = 0L
+            private set
+
+        override fun write(b: Int) {
+            out.write(b)
+            count++
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            out.write(b, off, len)
+            count += len
+        }
+
+        override fun close() {
+            flush()
+        }
+    }
+}
+
+/**
+ * The time of the entries in the MS-DOS format used by ZIP archives, in the local time zone.
+ */
+internal fun dosTime(millis: Long): Int {
+    val time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault())
+    if (time.year < 1980) {
+        return (1 shl 21) or (1 shl 16)
+    }
+    return ((time.year - 1980) shl 25) or (time.monthValue shl 21) or (time.dayOfMonth shl 16) or
+            (time.hour shl 11) or (time.minute shl 5) or (time.second shr 1)
+}
+
+/**
+ * If the entry is a jar directly inside `META-INF/lib`.
+ */
+internal fun isNestedJar(name: String) = name.startsWith("META-INF/lib/") && !name.endsWith('/') && name.indexOf('/', 13) < 0
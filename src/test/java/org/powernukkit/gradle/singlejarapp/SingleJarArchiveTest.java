@@ -0,0 +1,195 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Builds the single jar of a small application more than once, changing the files between the builds, to make sure
+ * that the compressed data reused from the previous single jar never leaves outdated or removed files behind.
+ *
+ * @author joserobjr
+ * @since 2021-08-18
+ */
+class SingleJarArchiveTest {
+    private static final String ARCHIVE = "build/distributions/demo-fatjar.jar";
+
+    @TempDir
+    Path projectDir;
+
+    @BeforeEach
+    void createProject() throws IOException {
+        Path library = Files.createDirectories(projectDir.resolve("libs")).resolve("library.jar");
+        try (JarOutputStream output = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(library)))) {
+            output.putNextEntry(new JarEntry("library/message.txt"));
+            output.write("Hello".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Path mainClass = Files.createDirectories(projectDir.resolve("src/main/java/demo")).resolve("Main.java");
+        write(mainClass, "package demo;\n\npublic class Main {\n    public static void main(String[] args) {\n    }\n}\n");
+        Path resources = Files.createDirectories(projectDir.resolve("src/main/resources/demo"));
+        write(resources.resolve("message.txt"), "Hello");
+        write(resources.resolve("removed.txt"), "Removed later");
+        write(projectDir.resolve("settings.gradle"), "rootProject.name = 'demo'\n");
+        buildScript("");
+    }
+
+    @Test
+    void rebuildsTheSameBytes() throws IOException {
+        build();
+        byte[] first = Files.readAllBytes(projectDir.resolve(ARCHIVE));
+
+        build("--rerun-tasks");
+        assertArrayEquals(first, Files.readAllBytes(projectDir.resolve(ARCHIVE)));
+    }
+
+    @Test
+    void rewritesAChangedFile() throws IOException {
+        build();
+        Map<String, byte[]> before = contents();
+
+        write(projectDir.resolve("src/main/resources/demo/message.txt"), "Changed");
+        build();
+        Map<String, byte[]> after = contents();
+
+        assertEquals("Changed", new String(after.get("demo/message.txt"), StandardCharsets.UTF_8));
+        assertEquals(before.keySet(), after.keySet());
+        for (Map.Entry<String, byte[]> entry : before.entrySet()) {
+            if (!entry.getKey().equals("demo/message.txt")) {
+                assertArrayEquals(entry.getValue(), after.get(entry.getKey()), entry.getKey());
+            }
+        }
+    }
+
+    @Test
+    void removesADeletedFile() throws IOException {
+        build();
+        assertTrue(contents().containsKey("demo/removed.txt"));
+
+        Files.delete(projectDir.resolve("src/main/resources/demo/removed.txt"));
+        build();
+        Map<String, byte[]> after = contents();
+        assertFalse(after.containsKey("demo/removed.txt"));
+        assertEquals("Hello", new String(after.get("demo/message.txt"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void storesTheNestedJars() throws IOException {
+        build();
+        assertEquals(ZipEntry.DEFLATED, method("META-INF/lib/library.jar"));
+
+        buildScript("singleJarApplication {\n    storeNestedJars.set(true)\n}\n");
+        build();
+        assertEquals(ZipEntry.STORED, method("META-INF/lib/library.jar"));
+        assertEquals(ZipEntry.DEFLATED, method("demo/message.txt"));
+        assertArrayEquals(Files.readAllBytes(projectDir.resolve("libs/library.jar")), contents().get("META-INF/lib/library.jar"));
+    }
+
+    private void buildScript(String extra) throws IOException {
+        write(projectDir.resolve("build.gradle"), String.join("\n",
+                "plugins {",
+                "    id 'org.powernukkit.single-jar-application'",
+                "}",
+                "",
+                "dependencies {",
+                "    implementation files('libs/library.jar')",
+                "}",
+                "",
+                "application {",
+                "    mainClass.set('demo.Main')",
+                "}",
+                "",
+                "tasks.withType(AbstractArchiveTask).configureEach {",
+                "    preserveFileTimestamps = false",
+                "    reproducibleFileOrder = true",
+                "}",
+                "",
+                extra
+        ));
+    }
+
+    private void build(String... extraArguments) {
+        String[] arguments = new String[extraArguments.length + 2];
+        arguments[0] = "distSingleJarApp";
+        arguments[1] = "--stacktrace";
+        System.arraycopy(extraArguments, 0, arguments, 2, extraArguments.length);
+        BuildResult result = GradleRunner.create()
+                .withProjectDir(projectDir.toFile())
+                .withPluginClasspath()
+                .withArguments(arguments)
+                .build();
+        assertEquals(TaskOutcome.SUCCESS, result.task(":distSingleJarApp").getOutcome());
+    }
+
+    /**
+     * Reads every entry of the single jar in order, which also checks their sizes and CRCs.
+     */
+    private Map<String, byte[]> contents() throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        try (ZipInputStream input = new ZipInputStream(Files.newInputStream(projectDir.resolve(ARCHIVE)))) {
+            ZipEntry entry;
+            while ((entry = input.getNextEntry()) != null) {
+                assertNull(contents.put(entry.getName(), readAll(input)), entry.getName());
+            }
+        }
+        return contents;
+    }
+
+    private int method(String name) throws IOException {
+        try (ZipFile archive = new ZipFile(projectDir.resolve(ARCHIVE).toFile())) {
+            ZipEntry entry = archive.getEntry(name);
+            assertNotNull(entry, name);
+            return entry.getMethod();
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
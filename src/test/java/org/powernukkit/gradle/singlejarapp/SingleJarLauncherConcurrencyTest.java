@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.gradle.api.logging.Logging;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Loads the same generated classes from many threads at the same time, each one in its own order, to make sure that
+ * every class is defined only once and all threads get the same {@link Class}.
+ *
+ * @author joserobjr
+ * @since 2021-08-18
+ */
+class SingleJarLauncherConcurrencyTest {
+    private static final int JAR_COUNT = 20;
+    private static final int CLASSES_PER_JAR = 150;
+    private static final int THREADS = Math.max(8, Runtime.getRuntime().availableProcessors());
+
+    private static final String PACKAGE_DIR = SingleJarLauncher.class.getPackage().getName().replace('.', '/') + '/';
+
+    @TempDir
+    static Path directory;
+
+    private static final List<String> classNames = new ArrayList<>();
+    private static final String[] internalPaths = new String[JAR_COUNT];
+    private static Path deflatedJar;
+    private static Path storedJar;
+
+    @BeforeAll
+    static void buildSingleJars() throws IOException {
+        Random random = new Random(42);
+        List<File> nestedJars = new ArrayList<>(JAR_COUNT);
+        for (int jar = 0; jar < JAR_COUNT; jar++) {
+            Path nestedJar = directory.resolve("lib-" + jar + ".jar");
+            try (JarOutputStream output = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(nestedJar)))) {
+                for (int i = 0; i < CLASSES_PER_JAR; i++) {
+                    String className = "test/jar" + jar + "/Class" + i;
+                    // Extending classes of other jars loads them while the class is defined, in a different order
+                    String superName = classNames.isEmpty() || random.nextInt(4) == 0? "java/lang/Object"
+                            : classNames.get(random.nextInt(classNames.size())).replace('.', '/');
+                    output.putNextEntry(new JarEntry(className + ".class"));
+                    output.write(generateClass(className, superName));
+                    classNames.add(className.replace('/', '.'));
+                }
+            }
+            nestedJars.add(nestedJar.toFile());
+            internalPaths[jar] = "/META-INF/lib/" + nestedJar.getFileName();
+        }
+
+        File index = directory.resolve("singlejar.idx").toFile();
+        IndexKt.writeSingleJarIndex(nestedJars, index, Logging.getLogger(SingleJarLauncherConcurrencyTest.class));
+        deflatedJar = writeSingleJar(directory.resolve("deflated.jar"), nestedJars, index, false);
+        storedJar = writeSingleJar(directory.resolve("stored.jar"), nestedJars, index, true);
+    }
+
+    static Stream<Arguments> modes() {
+        return Stream.of(SingleJarLauncher.MODE_EAGER, SingleJarLauncher.MODE_LAZY, SingleJarLauncher.MODE_MAPPED)
+                .flatMap(mode -> Stream.of(Arguments.of(mode, 1), Arguments.of(mode, THREADS)));
+    }
+
+    @ParameterizedTest(name = "{0} with {1} threads")
+    @MethodSource("modes")
+    void loadsEachClassOnce(String mode, int threads) throws Exception {
+        Path singleJar = SingleJarLauncher.MODE_MAPPED.equals(mode)? storedJar : deflatedJar;
+        try (URLClassLoader singleJarLoader = new URLClassLoader(new URL[]{singleJar.toUri().toURL()}, null)) {
+            ClassLoader launcher = (ClassLoader) singleJarLoader.loadClass(SingleJarLauncher.class.getName())
+                    .getConstructor(String[].class, ClassLoader.class, String.class)
+                    .newInstance(internalPaths, null, mode);
+
+            List<AtomicReferenceArray<Class<?>>> results = new ArrayList<>(threads);
+            List<Callable<Void>> tasks = new ArrayList<>(threads);
+            CountDownLatch start = new CountDownLatch(threads);
+            for (int thread = 0; thread < threads; thread++) {
+                List<Integer> order = new ArrayList<>(classNames.size());
+                for (int i = 0; i < classNames.size(); i++) {
+                    order.add(i);
+                }
+                Collections.shuffle(order, new Random(thread));
+                AtomicReferenceArray<Class<?>> loaded = new AtomicReferenceArray<>(classNames.size());
+                results.add(loaded);
+                tasks.add(() -> {
+                    start.countDown();
+                    start.await();
+                    for (int i : order) {
+                        loaded.set(i, Class.forName(classNames.get(i), true, launcher));
+                    }
+                    return null;
+                });
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                for (Future<Void> future : executor.invokeAll(tasks)) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof LinkageError) {
+                            fail("A class was defined twice", e.getCause());
+                        }
+                        throw e;
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            for (int i = 0; i < classNames.size(); i++) {
+                Class<?> expected = results.get(0).get(i);
+                assertNotNull(expected, classNames.get(i));
+                assertSame(launcher, expected.getClassLoader(), classNames.get(i));
+                for (AtomicReferenceArray<Class<?>> loaded : results) {
+                    assertSame(expected, loaded.get(i), classNames.get(i));
+                }
+            }
+        }
+    }
+
+    private static byte[] generateClass(String className, String superName) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, superName, null);
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static Path writeSingleJar(Path file, List<File> nestedJars, File index, boolean stored) throws IOException {
+        try (ZipOutputStream output = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            Path classes;
+            try {
+                classes = Paths.get(SingleJarLauncher.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            List<Path> launcherClasses;
+            try (Stream<Path> files = Files.list(classes.resolve(PACKAGE_DIR))) {
+                launcherClasses = files.filter(it -> it.getFileName().toString().startsWith("SingleJarLauncher"))
+                        .collect(Collectors.toList());
+            }
+            for (Path launcherClass : launcherClasses) {
+                output.putNextEntry(new ZipEntry(PACKAGE_DIR + launcherClass.getFileName()));
+                output.write(Files.readAllBytes(launcherClass));
+            }
+
+            output.putNextEntry(new ZipEntry(SingleJarLauncher.INDEX_RESOURCE));
+            output.write(Files.readAllBytes(index.toPath()));
+
+            for (File nestedJar : nestedJars) {
+                byte[] data = Files.readAllBytes(nestedJar.toPath());
+                ZipEntry entry = new ZipEntry("META-INF/lib/" + nestedJar.getName());
+                if (stored) {
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCompressedSize(data.length);
+                    entry.setCrc(crc.getValue());
+                }
+                output.putNextEntry(entry);
+                output.write(data);
+            }
+        }
+        return file;
+    }
+}
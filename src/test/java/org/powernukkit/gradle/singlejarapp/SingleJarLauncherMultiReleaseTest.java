@@ -0,0 +1,167 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnJre;
+import org.junit.jupiter.api.condition.EnabledOnJre;
+import org.junit.jupiter.api.condition.JRE;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.*;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.powernukkit.gradle.singlejarapp.TestSingleJar.*;
+
+/**
+ * Loads classes from nested jars that have versioned classes in {@code META-INF/versions}, to make sure that the
+ * best version for the running JVM is used only when the jar is a multi-release jar.
+ *
+ * @author joserobjr
+ * @since 2021-08-18
+ */
+class SingleJarLauncherMultiReleaseTest {
+    @TempDir
+    static Path directory;
+
+    private static String[] internalPaths;
+    private static Path deflatedJar;
+    private static Path storedJar;
+    private static Path unindexedJar;
+    private static Path legacyIndexJar;
+
+    @BeforeAll
+    static void buildSingleJars() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Multi-Release", "true");
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("test/mr/Versioned.class", generateClass("test/mr/Versioned", "java/lang/Object", "base"));
+        entries.put("META-INF/versions/9/test/mr/Versioned.class", generateClass("test/mr/Versioned", "java/lang/Object", "9"));
+        entries.put("META-INF/versions/9/test/mr/OnlyVersioned.class", generateClass("test/mr/OnlyVersioned", "java/lang/Object", "9"));
+        entries.put("META-INF/versions/1000/test/mr/Future.class", generateClass("test/mr/Future", "java/lang/Object", "1000"));
+        File multiRelease = writeJar(directory.resolve("multi-release.jar"), manifest, entries);
+
+        entries.clear();
+        entries.put("test/plain/Versioned.class", generateClass("test/plain/Versioned", "java/lang/Object", "base"));
+        entries.put("META-INF/versions/9/test/plain/Versioned.class", generateClass("test/plain/Versioned", "java/lang/Object", "9"));
+        File plain = writeJar(directory.resolve("plain.jar"), null, entries);
+
+        List<File> nestedJars = Arrays.asList(multiRelease, plain);
+        internalPaths = TestSingleJar.internalPaths(nestedJars);
+        byte[] index = index(nestedJars, directory);
+        Map<String, byte[]> ownEntries = Collections.singletonMap(SingleJarLauncher.INDEX_RESOURCE, index);
+        deflatedJar = writeSingleJar(directory.resolve("deflated.jar"), nestedJars, ownEntries, false);
+        storedJar = writeSingleJar(directory.resolve("stored.jar"), nestedJars, ownEntries, true);
+        unindexedJar = writeSingleJar(directory.resolve("unindexed.jar"), nestedJars, Collections.emptyMap(), false);
+        legacyIndexJar = writeSingleJar(directory.resolve("legacy-index.jar"), nestedJars,
+                Collections.singletonMap(SingleJarLauncher.INDEX_RESOURCE, withoutMultiReleaseFlag(index)), false);
+    }
+
+    static Stream<Arguments> modes() {
+        return Stream.of(
+                Arguments.of(SingleJarLauncher.MODE_EAGER, "deflated"),
+                Arguments.of(SingleJarLauncher.MODE_LAZY, "deflated"),
+                Arguments.of(SingleJarLauncher.MODE_LAZY, "unindexed"),
+                Arguments.of(SingleJarLauncher.MODE_MAPPED, "stored")
+        );
+    }
+
+    private static Path singleJar(String name) {
+        switch (name) {
+            case "deflated":
+                return deflatedJar;
+            case "stored":
+                return storedJar;
+            default:
+                return unindexedJar;
+        }
+    }
+
+    @ParameterizedTest(name = "{0} from the {1} jar")
+    @MethodSource("modes")
+    @DisabledOnJre(JRE.JAVA_8)
+    void usesTheVersionedClasses(String mode, String singleJar) throws Exception {
+        try (URLClassLoader singleJarLoader = open(singleJar(singleJar))) {
+            ClassLoader launcher = newLauncher(singleJarLoader, internalPaths, mode);
+            assertEquals("9", marker(Class.forName("test.mr.Versioned", true, launcher)));
+            assertEquals("9", marker(Class.forName("test.mr.OnlyVersioned", true, launcher)));
+            assertThrows(ClassNotFoundException.class, () -> Class.forName("test.mr.Future", true, launcher));
+            assertEquals("base", marker(Class.forName("test.plain.Versioned", true, launcher)), "Not a multi-release jar");
+        }
+    }
+
+    @ParameterizedTest(name = "{0} from the {1} jar")
+    @MethodSource("modes")
+    @EnabledOnJre(JRE.JAVA_8)
+    void usesTheBaseClassesOnJava8(String mode, String singleJar) throws Exception {
+        try (URLClassLoader singleJarLoader = open(singleJar(singleJar))) {
+            ClassLoader launcher = newLauncher(singleJarLoader, internalPaths, mode);
+            assertEquals("base", marker(Class.forName("test.mr.Versioned", true, launcher)));
+            assertThrows(ClassNotFoundException.class, () -> Class.forName("test.mr.OnlyVersioned", true, launcher));
+            assertThrows(ClassNotFoundException.class, () -> Class.forName("test.mr.Future", true, launcher));
+            assertEquals("base", marker(Class.forName("test.plain.Versioned", true, launcher)));
+        }
+    }
+
+    @Test
+    void ignoresAnIndexWithoutTheMultiReleaseFlag() throws Exception {
+        try (URLClassLoader singleJarLoader = open(legacyIndexJar)) {
+            ClassLoader launcher = newLauncher(singleJarLoader, internalPaths, SingleJarLauncher.MODE_LAZY);
+            String expected = runtimeVersion() >= 9? "9" : "base";
+            assertEquals(expected, marker(Class.forName("test.mr.Versioned", true, launcher)));
+            assertEquals("base", marker(Class.forName("test.plain.Versioned", true, launcher)));
+        }
+    }
+
+    /**
+     * Rewrites the index in the layout it had before the multi-release flag was added, with the version {@code 1}.
+     */
+    private static byte[] withoutMultiReleaseFlag(byte[] index) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(index));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(index.length);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(input.readInt());
+        assertEquals(SingleJarLauncher.INDEX_VERSION, input.readUnsignedShort());
+        output.writeShort(1);
+        int jarCount = input.readInt();
+        output.writeInt(jarCount);
+        for (int i = 0; i < jarCount; i++) {
+            output.writeUTF(input.readUTF());
+            output.writeLong(input.readLong());
+            output.writeInt(input.readInt());
+            input.readBoolean();
+            output.writeInt(input.readInt());
+            byte[] block = new byte[input.readInt()];
+            input.readFully(block);
+            output.writeInt(block.length);
+            output.write(block);
+        }
+        assertEquals(0, input.available());
+        return bytes.toByteArray();
+    }
+}
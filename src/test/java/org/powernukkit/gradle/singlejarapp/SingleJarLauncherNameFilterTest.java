@@ -0,0 +1,120 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.powernukkit.gradle.singlejarapp.TestSingleJar.*;
+
+/**
+ * Checks that the Bloom filter of the known names never rejects a class that is there, and that it rejects most of
+ * the classes that are not.
+ *
+ * @author joserobjr
+ * @since 2021-08-18
+ */
+class SingleJarLauncherNameFilterTest {
+    private static final int NAMES = 20_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void hasNoFalseNegatives() {
+        Random random = new Random(42);
+        List<String> binaryNames = new ArrayList<>(NAMES);
+        Set<String> names = new HashSet<>(NAMES * 2);
+        for (int i = 0; i < NAMES; i++) {
+            String binaryName = randomClassName(random);
+            binaryNames.add(binaryName);
+            names.add(binaryName.replace('.', '/') + ".class");
+        }
+        // Resources and directories are known names too
+        names.add("META-INF/MANIFEST.MF");
+        names.add("test/");
+
+        SingleJarLauncher.NameFilter filter = new SingleJarLauncher.NameFilter(names);
+        for (String binaryName : binaryNames) {
+            assertTrue(filter.mightContainClass(binaryName), binaryName);
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < NAMES; i++) {
+            String binaryName = randomClassName(random) + "Missing";
+            if (filter.mightContainClass(binaryName)) {
+                falsePositives++;
+            }
+        }
+        // About 1% is expected
+        assertTrue(falsePositives < NAMES / 20, falsePositives + " false positives");
+    }
+
+    @Test
+    void isEmptyWithoutNames() {
+        SingleJarLauncher.NameFilter filter = new SingleJarLauncher.NameFilter(Collections.emptySet());
+        assertFalse(filter.mightContainClass("test.Missing"));
+    }
+
+    @Test
+    void filtersTheLookupsOfMissingClasses() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("test/filter/Class" + i + ".class", generateClass("test/filter/Class" + i, "java/lang/Object"));
+        }
+        List<File> nestedJars = Collections.singletonList(writeJar(directory.resolve("filter.jar"), null, entries));
+        Path singleJar = writeSingleJar(directory.resolve("single.jar"), nestedJars,
+                Collections.singletonMap(SingleJarLauncher.INDEX_RESOURCE, index(nestedJars, directory)), false);
+
+        for (String mode : Arrays.asList(SingleJarLauncher.MODE_EAGER, SingleJarLauncher.MODE_LAZY)) {
+            try (URLClassLoader singleJarLoader = open(singleJar)) {
+                ClassLoader launcher = newLauncher(singleJarLoader, internalPaths(nestedJars), mode);
+                for (int i = 0; i < 100; i++) {
+                    assertSame(launcher, Class.forName("test.filter.Class" + i, false, launcher).getClassLoader());
+                }
+                for (int i = 0; i < 100; i++) {
+                    String missing = "test.filter.Missing" + i;
+                    assertThrows(ClassNotFoundException.class, () -> Class.forName(missing, false, launcher));
+                }
+                long filtered = (long) launcher.getClass().getMethod("getFilteredClassLookups").invoke(launcher);
+                assertTrue(filtered >= 90, filtered + " filtered lookups in " + mode);
+                assertTrue(filtered <= 100, filtered + " filtered lookups in " + mode);
+            }
+        }
+    }
+
+    private static String randomClassName(Random random) {
+        StringBuilder name = new StringBuilder();
+        int parts = 2 + random.nextInt(4);
+        for (int part = 0; part < parts; part++) {
+            if (part > 0) {
+                name.append('.');
+            }
+            int length = 1 + random.nextInt(12);
+            for (int i = 0; i < length; i++) {
+                name.append((char) ((part == parts - 1 && i == 0? 'A' : 'a') + random.nextInt(26)));
+            }
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reads the inflated resources of an in-memory nested jar through the resource cache, checking what is kept,
+ * what is dropped and what is counted.
+ *
+ * @author joserobjr
+ * @since 2021-08-18
+ */
+class SingleJarLauncherResourceCacheTest {
+    private final Map<String, byte[]> contents = new LinkedHashMap<>();
+    private final Map<String, SingleJarLauncher.IndexedEntry> entries = new HashMap<>();
+
+    private void nestedJar(int count, int size, int storedSize) throws IOException {
+        Random random = new Random(42);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream output = new ZipOutputStream(bytes)) {
+            for (int i = 0; i < count; i++) {
+                byte[] content = new byte[size];
+                for (int j = 0; j < size; j++) {
+                    content[j] = (byte) ('a' + random.nextInt(16));
+                }
+                contents.put("resource" + i + ".txt", content);
+                output.putNextEntry(new ZipEntry("resource" + i + ".txt"));
+                output.write(content);
+            }
+
+            byte[] stored = new byte[storedSize];
+            random.nextBytes(stored);
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            ZipEntry entry = new ZipEntry("stored.bin");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(stored.length);
+            entry.setCompressedSize(stored.length);
+            entry.setCrc(crc.getValue());
+            contents.put(entry.getName(), stored);
+            output.putNextEntry(entry);
+            output.write(stored);
+        }
+        SingleJarLauncher.NestedJar jar = new SingleJarLauncher.NestedJar("/META-INF/lib/test.jar", ByteBuffer.wrap(bytes.toByteArray()));
+        SingleJarLauncher.readCentralDirectory(jar, entries::put);
+    }
+
+    private void assertContent(SingleJarLauncher.ResourceCache cache, String name) throws IOException {
+        try (InputStream input = cache.open(entries.get(name))) {
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                read.write(buffer, 0, count);
+            }
+            assertArrayEquals(contents.get(name), read.toByteArray(), name);
+        }
+    }
+
+    @Test
+    void countsHitsAndMisses() throws IOException {
+        nestedJar(3, 1000, 1000);
+        SingleJarLauncher.ResourceCache cache = new SingleJarLauncher.ResourceCache(1 << 20);
+
+        assertContent(cache, "resource0.txt");
+        assertContent(cache, "resource1.txt");
+        assertContent(cache, "resource0.txt");
+        assertContent(cache, "resource0.txt");
+        // Not inflated, so not cached
+        assertContent(cache, "stored.bin");
+
+        SingleJarLauncher.ResourceCacheStats stats = cache.stats();
+        assertEquals(2, stats.hits);
+        assertEquals(2, stats.misses);
+        assertEquals(0, stats.evictions);
+        assertEquals(2000, stats.bytes);
+    }
+
+    @Test
+    void bypassesTheResourcesBiggerThanASegment() throws IOException {
+        nestedJar(1, 2000, 0);
+        SingleJarLauncher.ResourceCache cache = new SingleJarLauncher.ResourceCache(16 * 1000);
+
+        assertContent(cache, "resource0.txt");
+        assertContent(cache, "resource0.txt");
+
+        SingleJarLauncher.ResourceCacheStats stats = cache.stats();
+        assertEquals(0, stats.hits + stats.misses);
+        assertEquals(0, stats.bytes);
+    }
+
+    @Test
+    void staysWithinTheSizeBound() throws IOException {
+        nestedJar(40, 600, 0);
+        // Each of the 16 segments has room for only one of the resources
+        SingleJarLauncher.ResourceCache cache = new SingleJarLauncher.ResourceCache(16 * 1000);
+
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 40; i++) {
+                assertContent(cache, "resource" + i + ".txt");
+            }
+            SingleJarLauncher.ResourceCacheStats stats = cache.stats();
+            assertEquals(40L * (round + 1), stats.hits + stats.misses);
+            assertTrue(stats.bytes <= 16 * 600, () -> stats.bytes + " bytes");
+            assertEquals(stats.misses - stats.bytes / 600, stats.evictions);
+        }
+        assertTrue(cache.stats().evictions >= 40 - 16);
+    }
+
+    @Test
+    void dropsTheLeastRecentlyUsedFirst() throws IOException {
+        nestedJar(4, 10, 0);
+        SingleJarLauncher.ResourceCache.Segment segment = new SingleJarLauncher.ResourceCache.Segment(100);
+        SingleJarLauncher.IndexedEntry first = entries.get("resource0.txt");
+        SingleJarLauncher.IndexedEntry second = entries.get("resource1.txt");
+        SingleJarLauncher.IndexedEntry third = entries.get("resource2.txt");
+        SingleJarLauncher.IndexedEntry fourth = entries.get("resource3.txt");
+
+        assertEquals(0, segment.put(first, new byte[40]));
+        assertEquals(0, segment.put(second, new byte[40]));
+        assertNotNull(segment.get(first));
+        assertEquals(1, segment.put(third, new byte[40]));
+
+        assertNull(segment.get(second));
+        assertNotNull(segment.get(first));
+        assertNotNull(segment.get(third));
+        assertEquals(80, segment.bytes());
+
+        assertEquals(2, segment.put(fourth, new byte[100]));
+        assertNull(segment.get(first));
+        assertNull(segment.get(third));
+        assertEquals(100, segment.bytes());
+    }
+}
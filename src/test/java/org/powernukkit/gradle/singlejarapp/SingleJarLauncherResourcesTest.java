@@ -0,0 +1,158 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.powernukkit.gradle.singlejarapp.TestSingleJar.*;
+
+/**
+ * Finds resources and service files that are in more than one nested jar, with the files generated at build time
+ * matching the nested jars or generated for an older version of one of them.
+ *
+ * @author joserobjr
+ * @since 2021-08-18
+ */
+class SingleJarLauncherResourcesTest {
+    private static final String SERVICE = SingleJarLauncher.SERVICES_PREFIX + "test.Service";
+    private static final String SHARED = "test/shared.txt";
+
+    @TempDir
+    static Path directory;
+
+    private static String[] currentPaths;
+    private static String[] stalePaths;
+    private static Map<String, Path> currentJars;
+    private static Map<String, Path> staleJars;
+
+    @BeforeAll
+    static void buildSingleJars() throws IOException {
+        File first = nestedJar(directory, "a", "test.A\ntest.Shared\n");
+        File second = nestedJar(directory, "b", "# Comments are left out\ntest.B\ntest.Shared\n");
+        File third = nestedJar(directory, "c", "test.C\n");
+        File outdatedThird = nestedJar(Files.createDirectories(directory.resolve("outdated")), "c", "test.OutdatedC\n");
+
+        List<File> current = Arrays.asList(first, second);
+        currentPaths = internalPaths(current);
+        currentJars = singleJars("current", current, current);
+
+        // The generated files are from an older version of the last nested jar
+        List<File> stale = Arrays.asList(first, second, third);
+        stalePaths = internalPaths(stale);
+        staleJars = singleJars("stale", stale, Arrays.asList(first, second, outdatedThird));
+    }
+
+    /**
+     * A nested jar with a class, a service file and a resource, all named after it.
+     */
+    private static File nestedJar(Path directory, String name, String providers) throws IOException {
+        String className = "test/" + name + "/" + (providers.contains("Outdated")? "Outdated" : "Current");
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put(className + ".class", generateClass(className, "java/lang/Object", name));
+        entries.put(SERVICE, providers.getBytes(StandardCharsets.UTF_8));
+        entries.put(SHARED, name.getBytes(StandardCharsets.UTF_8));
+        return writeJar(directory.resolve(name + ".jar"), null, entries);
+    }
+
+    private static Map<String, Path> singleJars(String name, List<File> nestedJars, List<File> generatedFrom) throws IOException {
+        Map<String, byte[]> generated = new LinkedHashMap<>();
+        generated.put(SingleJarLauncher.INDEX_RESOURCE, index(generatedFrom, directory));
+        generated.put(SingleJarLauncher.SERVICES_RESOURCE, services(generatedFrom, directory));
+        Map<String, Path> singleJars = new HashMap<>();
+        singleJars.put(SingleJarLauncher.MODE_EAGER, writeSingleJar(directory.resolve(name + "-deflated.jar"), nestedJars, generated, false));
+        singleJars.put(SingleJarLauncher.MODE_LAZY, singleJars.get(SingleJarLauncher.MODE_EAGER));
+        singleJars.put(SingleJarLauncher.MODE_MAPPED, writeSingleJar(directory.resolve(name + "-stored.jar"), nestedJars, generated, true));
+        return singleJars;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {SingleJarLauncher.MODE_EAGER, SingleJarLauncher.MODE_LAZY, SingleJarLauncher.MODE_MAPPED})
+    void mergesTheServicesIntoOneUrl(String mode) throws Exception {
+        try (URLClassLoader singleJarLoader = open(currentJars.get(mode))) {
+            ClassLoader launcher = newLauncher(singleJarLoader, currentPaths, mode);
+            List<URL> urls = Collections.list(launcher.getResources(SERVICE));
+            assertEquals(1, urls.size(), urls::toString);
+            assertEquals(Arrays.asList("test.A", "test.Shared", "test.B"), read(urls.get(0)));
+            assertEquals(urls.get(0), launcher.getResource(SERVICE));
+            assertEquals(Arrays.asList("test.A", "test.Shared", "test.B"), read(launcher.getResourceAsStream(SERVICE)));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {SingleJarLauncher.MODE_EAGER, SingleJarLauncher.MODE_LAZY, SingleJarLauncher.MODE_MAPPED})
+    void ignoresTheGeneratedFilesOfChangedJars(String mode) throws Exception {
+        try (URLClassLoader singleJarLoader = open(staleJars.get(mode))) {
+            ClassLoader launcher = newLauncher(singleJarLoader, stalePaths, mode);
+            List<URL> urls = Collections.list(launcher.getResources(SERVICE));
+            assertEquals(2, urls.size(), urls::toString);
+            assertEquals(Arrays.asList("test.A", "test.Shared", "test.B"), read(urls.get(0)));
+            assertEquals(Collections.singletonList("test.C"), read(urls.get(1)));
+
+            assertEquals("c", marker(Class.forName("test.c.Current", true, launcher)));
+            assertThrows(ClassNotFoundException.class, () -> Class.forName("test.c.Outdated", true, launcher));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {SingleJarLauncher.MODE_EAGER, SingleJarLauncher.MODE_LAZY, SingleJarLauncher.MODE_MAPPED})
+    void findsTheResourcesOfEveryJar(String mode) throws Exception {
+        try (URLClassLoader singleJarLoader = open(staleJars.get(mode))) {
+            ClassLoader launcher = newLauncher(singleJarLoader, stalePaths, mode);
+            List<URL> urls = Collections.list(launcher.getResources(SHARED));
+            assertEquals(3, urls.size(), urls::toString);
+            assertEquals(Collections.singletonList("a"), read(urls.get(0)));
+            assertEquals(Collections.singletonList("b"), read(urls.get(1)));
+            assertEquals(Collections.singletonList("c"), read(urls.get(2)));
+
+            assertFalse(launcher.getResources("test/missing.txt").hasMoreElements());
+            assertEquals(1, Collections.list(launcher.getResources("test/c/Current.class")).size());
+        }
+    }
+
+    private static List<String> read(URL url) throws IOException {
+        return read(url.openStream());
+    }
+
+    /**
+     * The lines of the stream, without the comments and blank lines.
+     */
+    private static List<String> read(InputStream input) throws IOException {
+        assertNotNull(input);
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+}
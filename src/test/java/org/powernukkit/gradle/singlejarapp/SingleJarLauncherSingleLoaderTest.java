@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.powernukkit.gradle.singlejarapp.TestSingleJar.*;
+
+/**
+ * Loads the application classes, which are in the single jar itself, and the classes of the nested jars from the
+ * same launcher, like the {@code singleClassLoader} option does.
+ *
+ * @author joserobjr
+ * @since 2021-08-18
+ */
+class SingleJarLauncherSingleLoaderTest {
+    @TempDir
+    static Path directory;
+
+    private static String[] internalPaths;
+    private static Path deflatedJar;
+    private static Path storedJar;
+
+    @BeforeAll
+    static void buildSingleJars() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("test/lib/Base.class", generateClass("test/lib/Base", "java/lang/Object", "lib"));
+        entries.put("test/shared/Duplicated.class", generateClass("test/shared/Duplicated", "java/lang/Object", "nested"));
+        List<File> nestedJars = Collections.singletonList(writeJar(directory.resolve("lib.jar"), null, entries));
+
+        Map<String, byte[]> application = new LinkedHashMap<>();
+        application.put(SingleJarLauncher.INDEX_RESOURCE, index(nestedJars, directory));
+        application.put("test/app/Main.class", generateClass("test/app/Main", "test/lib/Base", "app"));
+        application.put("test/app/message.txt", "Hello".getBytes(StandardCharsets.UTF_8));
+        application.put("test/shared/Duplicated.class", generateClass("test/shared/Duplicated", "java/lang/Object", "app"));
+        deflatedJar = writeSingleJar(directory.resolve("deflated.jar"), nestedJars, application, false);
+        storedJar = writeSingleJar(directory.resolve("stored.jar"), nestedJars, application, true);
+
+        // The nested jars come first, like in the main method
+        String[] nestedPaths = TestSingleJar.internalPaths(nestedJars);
+        internalPaths = Arrays.copyOf(nestedPaths, nestedPaths.length + 1);
+        internalPaths[nestedPaths.length] = SingleJarLauncher.SINGLE_JAR;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {SingleJarLauncher.MODE_EAGER, SingleJarLauncher.MODE_LAZY, SingleJarLauncher.MODE_MAPPED})
+    void loadsTheApplicationClasses(String mode) throws Exception {
+        Path singleJar = SingleJarLauncher.MODE_MAPPED.equals(mode)? storedJar : deflatedJar;
+        try (URLClassLoader singleJarLoader = open(singleJar)) {
+            ClassLoader launcher = newLauncher(singleJarLoader, internalPaths, mode);
+
+            Class<?> mainClass = Class.forName("test.app.Main", true, launcher);
+            assertSame(launcher, mainClass.getClassLoader());
+            assertSame(launcher, mainClass.getSuperclass().getClassLoader());
+            assertEquals("app", marker(mainClass));
+            assertEquals("lib", marker(mainClass.getSuperclass()));
+            assertEquals("nested", marker(Class.forName("test.shared.Duplicated", true, launcher)),
+                    "The nested jars win for duplicated names");
+
+            URL message = launcher.getResource("test/app/message.txt");
+            assertNotNull(message);
+            assertNotEquals("jar", message.getProtocol(), "Served by the launcher, not by the class loader of the single jar");
+            try (InputStream input = message.openStream()) {
+                assertEquals("Hello", new String(readAll(input), StandardCharsets.UTF_8));
+            }
+            try (InputStream input = launcher.getResourceAsStream("test/app/message.txt")) {
+                assertNotNull(input);
+                assertEquals("Hello", new String(readAll(input), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        byte[] buffer = new byte[8192];
+        int size = 0;
+        int read;
+        while ((read = input.read(buffer, size, buffer.length - size)) > 0) {
+            size += read;
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, size * 2);
+            }
+        }
+        return Arrays.copyOf(buffer, size);
+    }
+}
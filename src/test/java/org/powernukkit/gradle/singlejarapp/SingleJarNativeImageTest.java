@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Builds a native image of a small application with a script standing in for {@code native-image}, which fails
+ * if the classpath is not found from its working directory and writes the arguments it was given.
+ *
+ * @author joserobjr
+ * @since 2021-08-18
+ */
+@DisabledOnOs(OS.WINDOWS)
+class SingleJarNativeImageTest {
+    @TempDir
+    Path projectDir;
+
+    @Test
+    void givesTheMainClassAfterAllOptions() throws IOException {
+        Path standIn = projectDir.resolve("native-image");
+        try (InputStream input = getClass().getResourceAsStream("native-image-stand-in.sh")) {
+            assertNotNull(input, "native-image-stand-in.sh");
+            Files.copy(input, standIn);
+        }
+        assertTrue(standIn.toFile().setExecutable(true));
+
+        Path library = Files.createDirectories(projectDir.resolve("libs")).resolve("library.jar");
+        try (JarOutputStream output = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(library)))) {
+            output.putNextEntry(new JarEntry("library/message.txt"));
+            output.write("Hello".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Path mainClass = Files.createDirectories(projectDir.resolve("src/main/java/demo")).resolve("Main.java");
+        write(mainClass, "package demo;\n\npublic class Main {\n    public static void main(String[] args) {\n    }\n}\n");
+        write(projectDir.resolve("settings.gradle"), "rootProject.name = 'demo'\n");
+        write(projectDir.resolve("build.gradle"), String.join("\n",
+                "plugins {",
+                "    id 'org.powernukkit.single-jar-application'",
+                "}",
+                "",
+                "dependencies {",
+                "    implementation files('libs/library.jar')",
+                "}",
+                "",
+                "application {",
+                "    mainClass.set('demo.Main')",
+                "}",
+                "",
+                "singleJarApplication {",
+                "    nativeImageExecutable.set('" + standIn.toAbsolutePath() + "')",
+                "    nativeImageArgs.set(['--no-fallback', '--verbose'])",
+                "}",
+                ""
+        ));
+
+        BuildResult result = GradleRunner.create()
+                .withProjectDir(projectDir.toFile())
+                .withPluginClasspath()
+                .withArguments("distSingleJarAppNative", "--stacktrace")
+                .build();
+        assertEquals(TaskOutcome.SUCCESS, result.task(":distSingleJarAppNative").getOutcome());
+
+        Path image = projectDir.resolve("build/distributions/demo-fatjar-native").toRealPath();
+        assertEquals(Arrays.asList(
+                "-cp",
+                "lib/application.jar:lib/library.jar",
+                "-H:ConfigurationFileDirectories=.",
+                "-o",
+                image.toString(),
+                "--no-fallback",
+                "--verbose",
+                "demo.Main"
+        ), Files.readAllLines(image.resolveSibling(image.getFileName() + ".args")));
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
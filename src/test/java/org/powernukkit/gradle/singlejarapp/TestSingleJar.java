@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021 José Roberto de Araújo Júnior <joserobjr@powernukkit.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.powernukkit.gradle.singlejarapp;
+
+import org.gradle.api.logging.Logging;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds the jars used by the launcher tests: nested jars with generated classes, and single jars with the launcher
+ * classes, the files that are generated at build time and the nested jars in {@code META-INF/lib}.
+ *
+ * @author joserobjr
+ * @since 2021-08-18
+ */
+final class TestSingleJar {
+    static final String PACKAGE_DIR = SingleJarLauncher.class.getPackage().getName().replace('.', '/') + '/';
+
+    private TestSingleJar() {
+        throw new UnsupportedOperationException();
+    }
+
+    static byte[] generateClass(String className, String superName) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, superName, null);
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * A class with a {@code MARKER} constant, to tell which of the classes with the same name was loaded.
+     */
+    static byte[] generateClass(String className, String superName, String marker) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, superName, null);
+        writer.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "MARKER", "Ljava/lang/String;", null, marker)
+                .visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    static String marker(Class<?> loadedClass) throws ReflectiveOperationException {
+        return (String) loadedClass.getField("MARKER").get(null);
+    }
+
+    /**
+     * Writes a jar with the given entries, in order, after the manifest if there's one.
+     */
+    static File writeJar(Path file, Manifest manifest, Map<String, byte[]> entries) throws IOException {
+        try (JarOutputStream output = manifest != null
+                ? new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(file)), manifest)
+                : new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                output.putNextEntry(new ZipEntry(entry.getKey()));
+                output.write(entry.getValue());
+            }
+        }
+        return file.toFile();
+    }
+
+    static String[] internalPaths(List<File> nestedJars) {
+        return nestedJars.stream().map(it -> "/META-INF/lib/" + it.getName()).toArray(String[]::new);
+    }
+
+    /**
+     * The index of the nested jars, like the one bundled by the plugin.
+     */
+    static byte[] index(List<File> nestedJars, Path directory) throws IOException {
+        File index = Files.createTempFile(directory, "singlejar", ".idx").toFile();
+        IndexKt.writeSingleJarIndex(nestedJars, index, Logging.getLogger(TestSingleJar.class));
+        return Files.readAllBytes(index.toPath());
+    }
+
+    /**
+     * The merged service files of the nested jars, like the ones bundled by the plugin.
+     */
+    static byte[] services(List<File> nestedJars, Path directory) throws IOException {
+        File services = Files.createTempFile(directory, "singlejar", ".services").toFile();
+        IndexKt.writeSingleJarServices(nestedJars, services, Logging.getLogger(TestSingleJar.class));
+        return Files.readAllBytes(services.toPath());
+    }
+
+    /**
+     * Writes a single jar with the launcher classes, the given entries of its own and the nested jars, which are
+     * stored without compression if {@code stored} is set.
+     */
+    static Path writeSingleJar(Path file, List<File> nestedJars, Map<String, byte[]> entries, boolean stored) throws IOException {
+        try (ZipOutputStream output = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            Path classes;
+            try {
+                classes = Paths.get(SingleJarLauncher.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            List<Path> launcherClasses;
+            try (Stream<Path> files = Files.list(classes.resolve(PACKAGE_DIR))) {
+                launcherClasses = files.filter(it -> it.getFileName().toString().startsWith("SingleJarLauncher"))
+                        .collect(Collectors.toList());
+            }
+            for (Path launcherClass : launcherClasses) {
+                output.putNextEntry(new ZipEntry(PACKAGE_DIR + launcherClass.getFileName()));
+                output.write(Files.readAllBytes(launcherClass));
+            }
+
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                output.putNextEntry(new ZipEntry(entry.getKey()));
+                output.write(entry.getValue());
+            }
+
+            for (File nestedJar : nestedJars) {
+                byte[] data = Files.readAllBytes(nestedJar.toPath());
+                ZipEntry entry = new ZipEntry("META-INF/lib/" + nestedJar.getName());
+                if (stored) {
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCompressedSize(data.length);
+                    entry.setCrc(crc.getValue());
+                }
+                output.putNextEntry(entry);
+                output.write(data);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * A class loader of the single jar alone, like the one that runs the launcher.
+     */
+    static URLClassLoader open(Path singleJar) throws IOException {
+        return new URLClassLoader(new URL[]{singleJar.toUri().toURL()}, null);
+    }
+
+    /**
+     * Creates the launcher from the classes of the single jar, with the bootstrap class loader as parent,
+     * like the main method of the launcher does.
+     */
+    static ClassLoader newLauncher(URLClassLoader singleJarLoader, String[] internalPaths, String mode) throws ReflectiveOperationException {
+        return (ClassLoader) singleJarLoader.loadClass(SingleJarLauncher.class.getName())
+                .getConstructor(String[].class, ClassLoader.class, String.class)
+                .newInstance(internalPaths, null, mode);
+    }
+
+    /**
+     * The major version of the running JVM, {@code 8} for Java 8.
+     */
+    static int runtimeVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.")? version.substring(2) : version);
+    }
+}
@@ -0,0 +1,24 @@
+#!/bin/sh
+# Stands in for native-image: checks the classpath from the working directory and writes the arguments it was given,
+# one per line, to <image>.args, next to an empty image.
+image=
+previous=
+for argument in "$@"; do
+    case "$previous" in
+        -cp)
+            old_ifs=$IFS
+            IFS=:
+            for entry in $argument; do
+                [ -f "$entry" ] || { echo "Missing classpath entry $entry in $(pwd)" >&2; exit 2; }
+            done
+            IFS=$old_ifs
+            ;;
+        -o)
+            image=$argument
+            ;;
+    esac
+    previous=$argument
+done
+[ -n "$image" ] || { echo "Missing the -o argument" >&2; exit 1; }
+printf '%s\n' "$@" > "$image.args"
+: > "$image"